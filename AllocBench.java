@@ -0,0 +1,92 @@
+/**
+ * Allocation throughput of the free block bitmap, run from the ThreadOS
+ * loader:
+ *   l AllocBench
+ *
+ * 1, 4 and 16 threads share one BitmapAllocator over a 1M block disk and
+ * each takes a block and gives it back over and over, then the same with
+ * 13 block extents (a Test5 "bothell" file). Last, a Superblock on a
+ * MemDevice hands out 1000 blocks through getFreeBlock( ) to show an
+ * allocation asks the disk for nothing.
+ */
+class AllocBench extends Thread {
+    final static int BLOCKS = 1048576;
+    final static int[] THREADS = { 1, 4, 16 };
+    final static int OPS = 1600000; // split over the threads
+
+    public AllocBench( String args[] ) {
+    }
+
+    public AllocBench( ) {
+    }
+
+    public void run( ) {
+        for ( int pass = 0; pass < 2; pass++ ) { // the first one warms up the JIT
+            boolean report = pass == 1;
+            for ( int t = 0; t < THREADS.length; t++ )
+                throughput( THREADS[t], 1, report );
+            for ( int t = 0; t < THREADS.length; t++ )
+                throughput( THREADS[t], 13, report );
+        }
+
+        MemDevice device = new MemDevice( 1000 );
+        Superblock superblock = new Superblock( 1000, device ); // formats it
+        long reads = device.getReads( );
+        long writes = device.getWrites( );
+        for ( int i = 0; i < 1000 && superblock.getFreeBlock( ) != -1; i++ )
+            ;
+        SysLib.cout( "getFreeBlock until the disk is full: " +
+                     ( device.getReads( ) - reads ) + " blocks read, " +
+                     ( device.getWrites( ) - writes ) + " written, " +
+                     superblock.getAllocator( ).freeBlocks( ) + " left\n" );
+        SysLib.cout( "AllocBench completed\n" );
+        SysLib.exit( );
+    }
+
+    private void throughput( int threads, int extent, boolean report ) {
+        BitmapAllocator allocator = new BitmapAllocator( BLOCKS );
+        allocator.reset( 100 );
+        // a half full disk, every other block in use
+        for ( int b = 100; b < BLOCKS; b += 2 )
+            allocator.mark( b );
+        Worker[] workers = new Worker[threads];
+        for ( int i = 0; i < threads; i++ )
+            workers[i] = new Worker( allocator, OPS / threads / extent, extent );
+        long start = System.nanoTime( );
+        for ( int i = 0; i < threads; i++ )
+            workers[i].start( );
+        for ( int i = 0; i < threads; i++ ) {
+            try {
+                workers[i].join( );
+            } catch ( InterruptedException e ) {}
+        }
+        long elapsed = Math.max( 1, System.nanoTime( ) - start );
+        if ( report )
+            SysLib.cout( "  threads = " + threads + ", " + extent +
+                         ( extent == 1 ? " block" : " blocks" ) + " at a time: " +
+                         ( long )OPS * 1000000 / elapsed + " blocks/ms\n" );
+    }
+
+    //a plain Java thread taking and giving back blocks
+    private static class Worker extends Thread {
+        private final BitmapAllocator allocator;
+        private final int rounds;
+        private final int[] blocks;
+
+        Worker( BitmapAllocator allocator, int rounds, int extent ) {
+            this.allocator = allocator;
+            this.rounds = rounds;
+            this.blocks = new int[extent];
+        }
+
+        public void run( ) {
+            for ( int r = 0; r < rounds; r++ ) {
+                int n = ( blocks.length == 1 )
+                    ? ( ( blocks[0] = allocator.alloc( ) ) != -1 ? 1 : 0 )
+                    : allocator.allocExtent( -1, blocks.length, blocks );
+                for ( int i = 0; i < n; i++ )
+                    allocator.free( blocks[i] );
+            }
+        }
+    }
+}
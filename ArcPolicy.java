@@ -0,0 +1,111 @@
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * ARC (Megiddo and Modha): T1 holds blocks seen once recently, T2 blocks seen
+ * at least twice, and the ghost lists B1 and B2 remember the numbers of blocks
+ * recently evicted from each. A miss that hits a ghost list moves the target
+ * size p of T1 towards the list that would have kept the block, so the cache
+ * adapts between recency (scans) and frequency (metadata) workloads.
+ */
+class ArcPolicy implements EvictionPolicy {
+    private final static byte NONE = 0;
+    private final static byte T1 = 1;
+    private final static byte T2 = 2;
+
+    private final FrameList t1;
+    private final FrameList t2;
+    //ghost lists, oldest first
+    private final LinkedHashSet<Integer> b1 = new LinkedHashSet<Integer>();
+    private final LinkedHashSet<Integer> b2 = new LinkedHashSet<Integer>();
+    private final byte[] where;  //which list each frame is on
+    private final int[] blocks;  //block held by each resident frame
+    private final int c;         //number of frames
+    private int p = 0;           //target size of T1
+
+    ArcPolicy(int frames) {
+        int[] prev = new int[frames];
+        int[] next = new int[frames];
+        t1 = new FrameList(prev, next);
+        t2 = new FrameList(prev, next);
+        where = new byte[frames];
+        blocks = new int[frames];
+        c = frames;
+    }
+
+    public void hit(int frame) {
+        if (where[frame] == T1) {
+            t1.unlink(frame);
+            where[frame] = T2;
+            t2.addFirst(frame);
+        }
+        else if (where[frame] == T2) {
+            t2.moveToFirst(frame);
+        }
+    }
+
+    public void insert(int frame, int blockId) {
+        remove(frame);
+        blocks[frame] = blockId;
+        if (b1.contains(blockId)) {
+            //would have been a hit with a bigger T1
+            p = Math.min(c, p + Math.max(b2.size() / b1.size(), 1));
+            b1.remove(blockId);
+            where[frame] = T2;
+            t2.addFirst(frame);
+        }
+        else if (b2.contains(blockId)) {
+            //would have been a hit with a bigger T2
+            p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+            b2.remove(blockId);
+            where[frame] = T2;
+            t2.addFirst(frame);
+        }
+        else {
+            where[frame] = T1;
+            t1.addFirst(frame);
+            //keep the directory at c pages for T1 + B1 and 2c overall
+            if (t1.size() + b1.size() > c && b1.size() > 0) {
+                dropOldest(b1);
+            }
+            while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * c && b2.size() > 0) {
+                dropOldest(b2);
+            }
+        }
+    }
+
+    public void remove(int frame) {
+        if (where[frame] == T1) {
+            t1.unlink(frame);
+        }
+        else if (where[frame] == T2) {
+            t2.unlink(frame);
+        }
+        where[frame] = NONE;
+    }
+
+    public int victim(int blockId, FrameFilter filter) {
+        boolean fromT1 = t1.size() > 0
+                && (t1.size() > p || (b2.contains(blockId) && t1.size() == p));
+        int f = fromT1 ? t1.lastEvictable(filter) : t2.lastEvictable(filter);
+        if (f == -1) {
+            f = fromT1 ? t2.lastEvictable(filter) : t1.lastEvictable(filter);
+        }
+        if (f == -1) {
+            return -1;
+        }
+        LinkedHashSet<Integer> ghosts = (where[f] == T1) ? b1 : b2;
+        ghosts.add(blocks[f]);
+        if (ghosts.size() > c) {
+            dropOldest(ghosts);
+        }
+        remove(f);
+        return f;
+    }
+
+    private void dropOldest(LinkedHashSet<Integer> ghosts) {
+        Iterator<Integer> oldest = ghosts.iterator();
+        oldest.next();
+        oldest.remove();
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Creates and reads back files on a million block disk, run from the
+ * ThreadOS loader:
+ *   l BigDiskBench
+ *
+ * The disk is a MemDevice (the simulated disk would keep all of it in memory
+ * and in the DISK file), so the times leave the disk out and the block
+ * counts are what a disk would be asked for. A disk that big is formatted
+ * with 32 bit block pointers (DiskFormat version 2). FILES files of
+ * FILE_BLOCKS blocks each take more blocks than a short pointer can address,
+ * so the last ones only read back right if the wide pointers work. Then the
+ * file system is mounted again from the device and every file is read and
+ * checked once more. Last, one file of BIG_BLOCKS blocks goes past the
+ * indirect block into the double indirect one; it's read back, and read
+ * again after a mount that finds the file system not unmounted cleanly (it
+ * was synced with a file open) and
+ * rebuilds the bitmap from the inodes, which must come to the same count of
+ * blocks in use.
+ *
+ * Leaves the kernel's file system alone.
+ */
+class BigDiskBench extends Thread {
+    final static int BLOCKS = 1048576;
+    final static int FILES = 512;
+    final static int FILE_BLOCKS = 128; // past the direct blocks, so every file has an indirect block
+    final static int BIG_BLOCKS = 2000; // past 11 + 128, so the file has a double indirect block
+
+    public BigDiskBench( String args[] ) {
+    }
+
+    public BigDiskBench( ) {
+    }
+
+    public void run( ) {
+        MemDevice device = new MemDevice( BLOCKS );
+        FileSystem fs = new FileSystem( BLOCKS, device ); // formats it
+        fs.format( FILES + 2 ); // the directory, the files and the big file
+        byte[] data = new byte[FILE_BLOCKS * 512];
+
+        long reads = device.getReads( );
+        long writes = device.getWrites( );
+        long start = System.currentTimeMillis( );
+        for ( int f = 0; f < FILES; f++ ) {
+            fill( data, f );
+            FileTableEntry ftEnt = fs.open( "f" + f, "w" );
+            fs.write( ftEnt, data );
+            fs.close( ftEnt );
+        }
+        fs.sync( );
+        report( "create", start, device, reads, writes );
+        int[] info = new int[FileSystem.STATFS_SIZE];
+        fs.statfs( info );
+        SysLib.cout( "  " + ( info[FileSystem.STATFS_TOTAL_BLOCKS] - info[FileSystem.STATFS_FREE_BLOCKS] ) +
+                     " of " + info[FileSystem.STATFS_TOTAL_BLOCKS] + " blocks in use, " +
+                     fs.fragmentation( "f" + ( FILES - 1 ) ) + "\n" );
+
+        readAll( fs, device, data, "read" );
+        fs.sync( ); // unmounted cleanly, the mount below loads the bitmap
+        FileSystem mounted = new FileSystem( BLOCKS, device );
+        readAll( mounted, device, data, "mount and read" );
+        bigFile( mounted, device );
+        SysLib.cout( "BigDiskBench completed\n" );
+        SysLib.exit( );
+    }
+
+    private void readAll( FileSystem fs, MemDevice device, byte[] data, String what ) {
+        byte[] buffer = new byte[data.length];
+        int wrong = 0;
+        long reads = device.getReads( );
+        long writes = device.getWrites( );
+        long start = System.currentTimeMillis( );
+        for ( int f = 0; f < FILES; f++ ) {
+            fill( data, f );
+            FileTableEntry ftEnt = fs.open( "f" + f, "r" );
+            int size = fs.read( ftEnt, buffer );
+            fs.close( ftEnt );
+            if ( size != data.length || !java.util.Arrays.equals( buffer, data ) )
+                wrong++;
+        }
+        report( what, start, device, reads, writes );
+        SysLib.cout( "  " + ( FILES - wrong ) + " of " + FILES + " files read back right\n" );
+    }
+
+    private void bigFile( FileSystem fs, MemDevice device ) {
+        byte[] big = new byte[BIG_BLOCKS * 512];
+        fill( big, FILES );
+        FileTableEntry ftEnt = fs.open( "big", "w" );
+        int size = fs.write( ftEnt, big );
+        fs.close( ftEnt );
+        int[] info = new int[FileSystem.STATFS_SIZE];
+        fs.statfs( info );
+        int used = info[FileSystem.STATFS_TOTAL_BLOCKS] - info[FileSystem.STATFS_FREE_BLOCKS];
+        SysLib.cout( "big file: " + size + " bytes written, " + fs.fragmentation( "big" ) + "\n" );
+        SysLib.cout( "  read back " + ( readsBack( fs, big ) ? "right" : "WRONG" ) + "\n" );
+
+        // synced with a file still open, so the mount rebuilds the bitmap
+        fs.open( "f0", "r" );
+        fs.sync( );
+        fs = new FileSystem( BLOCKS, device );
+        fs.statfs( info );
+        int rebuilt = info[FileSystem.STATFS_TOTAL_BLOCKS] - info[FileSystem.STATFS_FREE_BLOCKS];
+        SysLib.cout( "  unclean mount: " + rebuilt + " blocks in use (" + used + " before), read back " +
+                     ( readsBack( fs, big ) ? "right" : "WRONG" ) + "\n" );
+    }
+
+    private boolean readsBack( FileSystem fs, byte[] data ) {
+        byte[] buffer = new byte[data.length];
+        FileTableEntry ftEnt = fs.open( "big", "r" );
+        int size = fs.read( ftEnt, buffer );
+        fs.close( ftEnt );
+        return size == data.length && java.util.Arrays.equals( buffer, data );
+    }
+
+    //every file gets its own bytes
+    private void fill( byte[] data, int f ) {
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = ( byte )( i / 512 + f * 7 );
+    }
+
+    private void report( String what, long start, MemDevice device, long reads, long writes ) {
+        SysLib.cout( what + " " + FILES + " files of " + FILE_BLOCKS + " blocks: " +
+                     ( System.currentTimeMillis( ) - start ) + " ms, " +
+                     ( device.getReads( ) - reads ) + " blocks read, " +
+                     ( device.getWrites( ) - writes ) + " written\n" );
+    }
+}
@@ -0,0 +1,286 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A BlockAllocator over a bitmap, one bit per disk block (set = in use), in
+ * an AtomicLongArray. Blocks are claimed and released with compare-and-set on
+ * their word, so concurrent writers allocate without a lock: two threads
+ * racing for the same word just retry on it. The search starts at the word
+ * the last allocation came from (next fit), so it rotates over the disk and
+ * usually looks at one word.
+ *
+ * allocExtent( ) looks for a run of free bits instead, starting at a goal
+ * block, and claims the run a bit at a time. A bit lost to a racing thread
+ * just ends the run early, the rest of the blocks are then taken one by one
+ * as close after it as possible.
+ *
+ * The Superblock persists the bitmap: it loads the words at mount and on
+ * sync writes back the ones changed since its last sync (see takeDirty).
+ */
+public class BitmapAllocator implements BlockAllocator {
+    private final int totalBlocks;
+    private final AtomicLongArray words;
+    private final AtomicIntegerArray dirty;             //1 if the word changed since takeDirty
+    private final AtomicInteger hint = new AtomicInteger(0); //word to search first
+    private final AtomicInteger free = new AtomicInteger(0); //clear bits below totalBlocks
+    private volatile int firstData = 0;                 //blocks before this are metadata
+
+    //blocks allocExtent looks at for a long enough run before it settles for less
+    private final static int MAX_RUN_SEARCH = 16384;
+
+    /**
+     * Creates a bitmap with every block in use, see reset( ) and setWord( )
+     * @param totalBlocks number of disk blocks
+     */
+    BitmapAllocator(int totalBlocks) {
+        this.totalBlocks = totalBlocks;
+        words = new AtomicLongArray((totalBlocks + 63) / 64);
+        dirty = new AtomicIntegerArray(words.length());
+        for (int w = 0; w < words.length(); w++) {
+            words.set(w, -1L);
+        }
+    }
+
+    /**
+     * Makes every data block free, for a format
+     * @param firstData the first data block, the ones before it stay in use
+     */
+    void reset(int firstData) {
+        this.firstData = firstData;
+        for (int w = 0; w < words.length(); w++) {
+            long word = 0;
+            for (int bit = 0; bit < 64; bit++) {
+                int b = w * 64 + bit;
+                if (b < firstData || b >= totalBlocks) {
+                    word |= 1L << bit;
+                }
+            }
+            words.set(w, word);
+            dirty.set(w, 1);
+        }
+        hint.set(0);
+        free.set(totalBlocks - firstData);
+    }
+
+    /**
+     * Loads a word of the bitmap as it was saved, call recount( ) after the last one
+     */
+    void setWord(int w, long value) {
+        words.set(w, value);
+    }
+
+    /**
+     * Recounts the free blocks after loading the bitmap
+     * @param firstData the first data block
+     */
+    void recount(int firstData) {
+        this.firstData = firstData;
+        int n = 0;
+        for (int w = 0; w < words.length(); w++) {
+            n += Long.bitCount(~words.get(w)); //metadata and past-the-end bits are set
+        }
+        free.set(n);
+    }
+
+    /**
+     * Marks a data block in use, for rebuilding the bitmap from the inodes
+     * after reset( ). Safe to call from many threads.
+     * @return false if it isn't a data block or is marked already (a block
+     *         two files point to)
+     */
+    boolean mark(int blockId) {
+        return blockId >= firstData && claim(blockId);
+    }
+
+    long getWord(int w) {
+        return words.get(w);
+    }
+
+    int wordCount() {
+        return words.length();
+    }
+
+    /**
+     * Tells whether a word changed since the last call for it and clears that.
+     * The caller reads the word after this, so a change racing with it is
+     * either in what it reads or reported by the next call.
+     */
+    boolean takeDirty(int w) {
+        return dirty.getAndSet(w, 0) == 1;
+    }
+
+    public int alloc() {
+        int n = words.length();
+        int start = hint.get();
+        for (int i = 0; i < n; i++) {
+            int w = (start + i) % n;
+            long old;
+            while ((old = words.get(w)) != -1L) {
+                long bit = Long.lowestOneBit(~old);
+                if (words.compareAndSet(w, old, old | bit)) {
+                    dirty.set(w, 1);
+                    free.decrementAndGet();
+                    hint.set(w);
+                    return w * 64 + Long.numberOfTrailingZeros(bit);
+                }
+                //another thread changed the word, look at it again
+            }
+        }
+        return -1;
+    }
+
+    public int allocExtent(int goal, int count, int[] blocks) {
+        if (goal < firstData || goal >= totalBlocks) {
+            goal = hint.get() * 64; //no goal, go on from the last allocation
+        }
+        int n = 0;
+        int start = findRun(goal, count);
+        if (start != -1) {
+            while (n < count && claim(start + n)) {
+                blocks[n] = start + n;
+                n++;
+            }
+        }
+        int next = (n > 0) ? blocks[n - 1] + 1 : goal;
+        while (n < count) {
+            int b = claimFrom(next);
+            if (b == -1) {
+                break; //disk full
+            }
+            blocks[n++] = b;
+            next = b + 1;
+        }
+        return n;
+    }
+
+    /**
+     * Finds the first free block at or after a block, without wrapping
+     * @return the block number, -1 if there's none
+     */
+    private int nextFree(int from) {
+        if (from >= totalBlocks) {
+            return -1;
+        }
+        int w = from / 64;
+        long word = words.get(w) | ((1L << (from % 64)) - 1); //bits before from count as used
+        while (word == -1L) {
+            if (++w == words.length()) {
+                return -1;
+            }
+            word = words.get(w);
+        }
+        int b = w * 64 + Long.numberOfTrailingZeros(~word);
+        return (b < totalBlocks) ? b : -1;
+    }
+
+    /**
+     * Finds count free blocks in a row, the first run at or after goal, else
+     * the first one from the start of the data blocks. Gives up after looking
+     * at MAX_RUN_SEARCH blocks, so on a fragmented disk an allocation costs
+     * about the same as on an empty one.
+     * @return the first block of the run, -1 if there's no such run close by
+     */
+    private int findRun(int goal, int count) {
+        int from = goal;
+        int searched = 0;
+        boolean wrapped = false;
+        while (searched < MAX_RUN_SEARCH) {
+            int s = nextFree(from);
+            if (s == -1 || (wrapped && s >= goal)) {
+                if (wrapped) {
+                    return -1;
+                }
+                wrapped = true;
+                searched += totalBlocks - from;
+                from = firstData;
+                continue;
+            }
+            int e = s + 1;
+            while (e - s < count && e < totalBlocks && !isAllocated(e)) {
+                e++;
+            }
+            if (e - s == count) {
+                return s;
+            }
+            searched += e - from;
+            from = e;
+        }
+        return -1;
+    }
+
+    /**
+     * Takes the first free block at or after a block, wrapping to the start
+     * of the data blocks
+     * @return the block number, -1 if the disk is full
+     */
+    private int claimFrom(int from) {
+        boolean wrapped = false;
+        while (true) {
+            int b = nextFree(from);
+            if (b == -1) {
+                if (wrapped) {
+                    return -1;
+                }
+                wrapped = true;
+                from = firstData;
+            } else if (claim(b)) {
+                return b;
+            } else {
+                from = b; //lost it to another thread, it's not free now
+            }
+        }
+    }
+
+    /**
+     * Sets a block's bit if it's clear
+     * @return false if the block was in use
+     */
+    private boolean claim(int blockId) {
+        if (blockId >= totalBlocks) {
+            return false;
+        }
+        int w = blockId / 64;
+        long bit = 1L << (blockId % 64);
+        long old;
+        do {
+            old = words.get(w);
+            if ((old & bit) != 0) {
+                return false;
+            }
+        } while (!words.compareAndSet(w, old, old | bit));
+        dirty.set(w, 1);
+        free.decrementAndGet();
+        hint.set(w);
+        return true;
+    }
+
+    public boolean free(int blockId) {
+        if (blockId < firstData || blockId >= totalBlocks) {
+            return false;
+        }
+        int w = blockId / 64;
+        long bit = 1L << (blockId % 64);
+        long old;
+        do {
+            old = words.get(w);
+            if ((old & bit) == 0) {
+                return false; //freed twice
+            }
+        } while (!words.compareAndSet(w, old, old & ~bit));
+        dirty.set(w, 1);
+        free.incrementAndGet();
+        return true;
+    }
+
+    public boolean isAllocated(int blockId) {
+        if (blockId < 0 || blockId >= totalBlocks) {
+            return true;
+        }
+        return (words.get(blockId / 64) & (1L << (blockId % 64))) != 0;
+    }
+
+    public int freeBlocks() {
+        return free.get();
+    }
+}
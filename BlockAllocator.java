@@ -0,0 +1,43 @@
+/**
+ * Hands out and takes back the data blocks of the file system. There is one
+ * allocator per file system (the Superblock's), all block allocation goes
+ * through it. Implementations must be safe to call from many threads.
+ */
+public interface BlockAllocator {
+    /**
+     * Takes a free block
+     * @return the block number, -1 if the disk is full
+     */
+    int alloc();
+
+    /**
+     * Takes count free blocks, as one contiguous run if the disk has one,
+     * placed at or after goal when it can be (e.g. right after the last block
+     * of the file the blocks are for). If there's no long enough run the
+     * blocks are taken one at a time, each as close after the previous one as
+     * possible.
+     * @param goal block number to start looking at, -1 for anywhere
+     * @param count number of blocks wanted
+     * @param blocks gets the block numbers taken, in order
+     * @return the number of blocks taken, less than count only if the disk is full
+     */
+    int allocExtent(int goal, int count, int[] blocks);
+
+    /**
+     * Gives a block back
+     * @param blockId block number
+     * @return false if the block isn't a data block or is free already
+     */
+    boolean free(int blockId);
+
+    /**
+     * @param blockId block number
+     * @return true if the block is in use (metadata blocks always are)
+     */
+    boolean isAllocated(int blockId);
+
+    /**
+     * @return number of free blocks
+     */
+    int freeBlocks();
+}
@@ -0,0 +1,64 @@
+/**
+ * Where the file system reads and writes its blocks: the superblock, the
+ * inodes, indirect blocks and file data all go through one BlockDevice, picked
+ * when the file system is mounted. RawDevice goes straight to the disk,
+ * CachedDevice through the kernel's block cache.
+ *
+ * Same calling convention as SysLib.rawread/rawwrite: Kernel.OK (0) on
+ * success, Kernel.ERROR otherwise.
+ */
+public interface BlockDevice {
+    /**
+     * Reads a block
+     * @param blockId block number
+     * @param buffer gets the block's contents
+     * @return Kernel.OK, or Kernel.ERROR if the block can't be read
+     */
+    int read(int blockId, byte[] buffer);
+
+    /**
+     * Writes a block, maybe only to memory until the next sync( )
+     * @param blockId block number
+     * @param buffer the block's new contents
+     * @return Kernel.OK, or Kernel.ERROR if the block can't be written
+     */
+    int write(int blockId, byte[] buffer);
+
+    /**
+     * Makes every write so far reach the disk
+     */
+    void sync();
+
+    /**
+     * Makes the writes to the given blocks so far reach the disk
+     * @param blocks block numbers
+     */
+    void writeBack(int[] blocks);
+
+    /**
+     * Forgets whatever the device holds in memory for the given blocks,
+     * unwritten changes included
+     * @param blocks block numbers
+     */
+    void invalidate(int[] blocks);
+
+    /**
+     * Asks for a block to stay in memory, for metadata read over and over
+     * @param blockId block number
+     * @return false if the device doesn't keep the block in memory
+     */
+    boolean pin(int blockId);
+
+    /**
+     * Undoes a successful pin( )
+     * @param blockId block number
+     */
+    void unpin(int blockId);
+
+    /**
+     * Hints that a block will probably be read soon, so the device can start
+     * reading it in the background
+     * @param blockId block number
+     */
+    void prefetch(int blockId);
+}
@@ -0,0 +1,140 @@
+import java.util.Arrays;
+
+/**
+ * Maps a disk block number to the cache frame holding it. This is an open
+ * addressing hash table over two int arrays (linear probing, no boxed keys),
+ * so a lookup costs the same no matter how many frames the cache has.
+ * Removal shifts the following entries back instead of leaving tombstones,
+ * so the table never has to be rebuilt while the cache is running.
+ *
+ * Not synchronized, the owner of the index is expected to hold its own lock.
+ */
+class BlockIndex {
+    private final static int EMPTY = Integer.MIN_VALUE; //no block maps to this
+
+    private int[] keys;   //block numbers
+    private int[] values; //frame numbers
+    private int mask;     //keys.length - 1, the length is a power of two
+    private int size;     //number of mappings
+
+    /**
+     * Creates an index sized so it stays at most half full with the given
+     * number of mappings.
+     * @param expected number of mappings (the cache's frame count)
+     */
+    BlockIndex(int expected) {
+        int capacity = 2;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        clear();
+    }
+
+    //spreads the block numbers so runs of consecutive blocks don't cluster
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Looks up the frame for a block
+     * @param key block number
+     * @return the frame number, -1 if the block isn't mapped
+     */
+    int get(int key) {
+        for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Maps a block to a frame, replacing any previous mapping of that block
+     * @param key block number
+     * @param value frame number
+     */
+    void put(int key, int value) {
+        int i = slot(key);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Removes the mapping for a block
+     * @param key block number
+     * @return the frame it was mapped to, -1 if it wasn't mapped
+     */
+    int remove(int key) {
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+        int removed = values[i];
+        //shift back every later entry of this probe run that could live at i
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == EMPTY) {
+                break;
+            }
+            int home = slot(keys[j]);
+            //j's entry can move to i only if its home isn't cyclically in (i, j]
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+        return removed;
+    }
+
+    /**
+     * Drops every mapping
+     */
+    void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * @return the number of blocks mapped
+     */
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        clear();
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -7,7 +7,8 @@ public class Boot
 
     public static void main ( String args[] ) {
 	SysLib.cerr( "threadOS ver 1.0:\n" );
-	SysLib.boot( );
+	// name=value arguments (e.g. policy=arc) go to the kernel's BOOT
+	Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE, Kernel.BOOT, 0, args );
 	SysLib.cerr( "Type ? for help\n" );
 
 	String[] loader = new String[1];
@@ -1,119 +1,540 @@
-import java.util.*;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Cache {
     /**
      * The constructor: allocates a cacheBlocks number of cache blocks, 
      * each containing blockSize-byte data, on memory 
+     * The cache blocks are split into shards, each with its own lock, so threads
+     * working on blocks of different shards don't wait for each other.
+     * The data of all cache blocks lives in one slab allocated here, so the
+     * cache's memory use is fixed from the start.
+     * Victims are picked with second chance (CLOCK).
      * @param blockSize amt of data in each block
      * @param cacheBlocks amt of cache blocks
      */
     public Cache(int blockSize, int cacheBlocks) {
-        //init the pageTable with entries
-        pageTable = new Entry[cacheBlocks];
-        for (int i = 0; i < cacheBlocks; i++) {
-            pageTable[i] =  new Entry(i, blockSize);
+        this(blockSize, cacheBlocks, "clock");
+    }
+
+    /**
+     * Same as above, with the eviction policy each shard uses
+     * @param blockSize amt of data in each block
+     * @param cacheBlocks amt of cache blocks
+     * @param policy one of POLICIES, anything else means "clock"
+     */
+    public Cache(int blockSize, int cacheBlocks, String policy) {
+        this(blockSize, cacheBlocks, policy, DEFAULT_DISK_BLOCKS);
+    }
+
+    /**
+     * Same as above, for a disk of any size
+     * @param blockSize amt of data in each block
+     * @param cacheBlocks amt of cache blocks
+     * @param policy one of POLICIES, anything else means "clock"
+     * @param diskBlocks blocks on the disk, block ids past it are rejected
+     */
+    public Cache(int blockSize, int cacheBlocks, String policy, int diskBlocks) {
+        //an impossible size gets the smallest or largest cache instead
+        cacheBlocks = Math.max(1, Math.min(MAX_BLOCKS, cacheBlocks));
+        this.diskBlocks = diskBlocks;
+        //pick a power of two number of shards, but keep a few blocks in each
+        int count = 1;
+        while (count * 2 <= MAX_SHARDS && count * 2 * MIN_SHARD_BLOCKS <= cacheBlocks) {
+            count *= 2;
+        }
+        this.blockSize = blockSize;
+        slab = new byte[cacheBlocks * blockSize];
+        shards = new Shard[count];
+        int base = 0;
+        for (int i = 0; i < count; i++) {
+            //spread the leftover blocks over the first shards
+            int blocks = cacheBlocks / count + (i < cacheBlocks % count ? 1 : 0);
+            shards[i] = new Shard(slab, base, blocks, policy);
+            base += blocks * blockSize;
         }
     }
 
+    //most cache blocks the constructor and resize( ) take, 32 MB of 512 byte
+    //blocks: the slab is one array, allocated all at once
+    public final static int MAX_BLOCKS = 65536;
+
+    //names of the eviction policies the constructor takes
+    public final static String[] POLICIES = { "clock", "lru", "2q", "arc" };
+
+    /**
+     * Makes the eviction policy for a page table of the given size
+     * @param name one of POLICIES, anything else means "clock"
+     * @param frames number of cache blocks the policy manages
+     */
+    static EvictionPolicy newPolicy(String name, int frames) {
+        if ("lru".equals(name)) {
+            return new LruPolicy(frames);
+        }
+        if ("2q".equals(name)) {
+            return new TwoQPolicy(frames);
+        }
+        if ("arc".equals(name)) {
+            return new ArcPolicy(frames);
+        }
+        return new ClockPolicy(frames);
+    }
+
 
     //Entry = cache block
     private class Entry {
-        byte[] buffer; //needed?
         byte dirtyBit = 0;
-        //This is the reference bit for the second chance algorithm
-        //Initialized to 1, set to 0 when searching for a replacement bit
-        //if 0, will be replaced if searching 
-        byte secondChance = 1;
-        //int refBit = 0;
         /**
          * Contains the disk block number of cached data
          * if this entry does not have valid block information, the disk block number
          * should be set to -1
          */
         int blockFrameNumber = -1;
-        int blockSize;
         int id;
-        boolean valid = true; //if valid is false, replace
-        Entry(int id, int blockSize) {
+        /**
+         * true while a thread does disk I/O for this block outside the shard lock,
+         * other threads that want it wait on the shard until it's cleared
+         */
+        boolean loading = false;
+        //dirty block being written back before this entry takes a new block, -1 if none
+        int evicting = -1;
+        long dirtiedAt = 0; //when the entry last went from clean to dirty, in ms
+        boolean prefetched = false; //read ahead and not asked for yet
+        int pins = 0; //pin( )s not undone by unpin( ) yet, a pinned entry is never evicted
+        Entry(int id) {
             this.id = id;
-            this.blockSize = blockSize;
         }
     }
 
-    private Entry[] pageTable = null;
-
     /**
-     * Search for an used block where the blockFrameNumber is -1, or if none are -1
-     * find the next victim and return it's id
-     * @return id of freeBlock
+     * A shard owns part of the cache blocks, its own page table, index and
+     * eviction policy, and a slice of the slab holding their data (entry i at
+     * base + i * blockSize). Its monitor is the lock for all of those.
      */
-    private int findFreePage() {
-        //search for an unused block sequentially
-        int replaceMe = -1;
-        int length = pageTable.length;
-        for (int i = 0; i < length; i++) {
-            if (!pageTable[i].valid) {
-                replaceMe = i; //was not valid, so open for replacement
-                break;
+    private class Shard implements EvictionPolicy.FrameFilter {
+        Entry[] pageTable = null;
+        byte[] slab = null;
+        int base = 0;
+        //blockFrameNumber -> page table slot of every valid entry
+        BlockIndex index = null;
+        EvictionPolicy policy = null;
+        String policyName = null;
+        //stack of entries holding no block
+        int[] free = null;
+        int freeCount = 0;
+
+        int dirtyBlocks = 0; //entries with the dirty bit set
+        int pinned = 0;      //entries with pins > 0
+
+        Shard(byte[] slab, int base, int cacheBlocks, String policyName) {
+            this.slab = slab;
+            this.base = base;
+            //init the pageTable with entries
+            pageTable = new Entry[cacheBlocks];
+            free = new int[cacheBlocks];
+            for (int i = 0; i < cacheBlocks; i++) {
+                pageTable[i] =  new Entry(i);
+                free[freeCount++] = cacheBlocks - 1 - i;
             }
-            if (pageTable[i].blockFrameNumber == -1) {
-                replaceMe = i;
-                break;
+            index = new BlockIndex(cacheBlocks);
+            this.policyName = policyName;
+            policy = newPolicy(policyName, cacheBlocks);
+        }
+
+        //entries holding (or loading) a block
+        int resident() {
+            return pageTable.length - freeCount;
+        }
+
+        /**
+         * Takes an entry holding no block if there is one, otherwise asks the
+         * eviction policy for a victim. Entries that are loading are never picked.
+         * @param blockId block that will be brought in
+         * @return id of freeBlock, -1 if every block is loading
+         */
+        int findFreePage(int blockId) {
+            if (freeCount > 0) {
+                return free[--freeCount];
             }
+            return policy.victim(blockId, this);
         }
-        if (replaceMe != -1) {
-            return replaceMe;
+
+        public boolean evictable(int frame) {
+            return !pageTable[frame].loading && pageTable[frame].pins == 0;
         }
-        else {
-            //try to find a 0 bit entry to return
-            int j = 0;
-            while (replaceMe == -1) {
-                //while loop since worst case scenario is that all entries are SCB = 1 at the start
-                if (pageTable[j].secondChance == 0) {
-                    replaceMe = j;
-                    break;
+
+        //copy a block between an entry's slab slot and an array
+        void copyOut(int cacheID, byte[] dst) {
+            System.arraycopy(slab, base + cacheID * blockSize, dst, 0, Math.min(dst.length, blockSize));
+        }
+
+        void copyIn(int cacheID, byte[] src) {
+            System.arraycopy(src, 0, slab, base + cacheID * blockSize, Math.min(src.length, blockSize));
+        }
+
+        /**
+         * Checks if data associated with the blockID passed is in cache 
+         * Looks the block up in the index instead of scanning the page table
+         * @param blockId
+         * @return -1 if couldn't find, cache block id if found
+         */
+        int isInCache(int blockId) {
+            return index.get(blockId); //-1 if it's not there
+        }
+
+        /**
+         * Looks up a block, waiting while another thread is loading it
+         * @param blockId
+         * @return the entry holding the block, null if it isn't cached
+         */
+        Entry lookup(int blockId) {
+            while (true) {
+                int i = isInCache(blockId);
+                if (i == -1) {
+                    return null;
+                }
+                if (!pageTable[i].loading) {
+                    return pageTable[i];
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {}
+            }
+        }
+
+        /**
+         * Takes a free or victim entry for blockId and marks it loading. A dirty
+         * victim's old block stays mapped to the entry until it's written back, so
+         * readers of it wait instead of reading the stale disk block.
+         * @param blockId block the entry will hold
+         * @param stage gets a copy of a dirty victim's data for the write back
+         * @return the loading entry, null if every entry is loading
+         */
+        Entry claim(int blockId, byte[] stage) {
+            int cacheID = findFreePage(blockId);
+            if (cacheID == -1) {
+                return null;
+            }
+            Entry e = pageTable[cacheID];
+            e.evicting = -1;
+            notePrefetchDropped(e);
+            if (e.blockFrameNumber != -1) {
+                stats.evictions.increment();
+                if (e.dirtyBit == 1) {
+                    stats.dirtyEvictions.increment();
+                    e.evicting = e.blockFrameNumber;
+                    copyOut(cacheID, stage);
                 }
                 else {
-                    //set the bit to 0
-                    pageTable[j].secondChance = 0;
+                    index.remove(e.blockFrameNumber);
                 }
-                j++;
-                if (j == length-1) {
-                    j = 0;
+            }
+            e.loading = true;
+            e.blockFrameNumber = blockId;
+            index.put(blockId, cacheID);
+            policy.insert(cacheID, blockId);
+            return e;
+        }
+
+        /**
+         * Waits until no entry of the shard is loading
+         */
+        void awaitLoads() {
+            //start over after every wait, other entries may start loading meanwhile
+            for (int i = 0; i < pageTable.length; i++) {
+                if (pageTable[i].loading) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {}
+                    i = -1;
                 }
             }
-            return replaceMe;
+        }
+
+        //dirty bit setters keeping dirtyBlocks and dirtiedAt up to date
+        void setDirty(Entry e) {
+            if (e.dirtyBit == 0) {
+                e.dirtyBit = 1;
+                e.dirtiedAt = System.currentTimeMillis();
+                dirtyBlocks++;
+            }
+        }
+
+        void setClean(Entry e) {
+            if (e.dirtyBit == 1) {
+                e.dirtyBit = 0;
+                dirtyBlocks--;
+            }
+        }
+
+        /**
+         * @return how many entries of a shard with the given size may be pinned,
+         * always leaving one for everything else
+         */
+        int pinLimit(int cacheBlocks) {
+            if (pinQuota == 0) {
+                return 0;
+            }
+            return Math.min(cacheBlocks - 1, Math.max(1, cacheBlocks * pinQuota / 100));
+        }
+
+        //an entry that was read ahead is losing its block before anyone read it
+        void notePrefetchDropped(Entry e) {
+            if (e.prefetched) {
+                e.prefetched = false;
+                stats.wastedPrefetches.increment();
+            }
+        }
+
+        /**
+         * Drops the block an entry holds (without writing it back) and puts the
+         * entry on the free stack
+         */
+        void release(int cacheID) {
+            Entry e = pageTable[cacheID];
+            notePrefetchDropped(e);
+            if (e.pins > 0) {
+                e.pins = 0;
+                pinned--;
+            }
+            if (e.blockFrameNumber != -1) {
+                index.remove(e.blockFrameNumber);
+                setClean(e);
+                e.blockFrameNumber = -1;
+                policy.remove(cacheID);
+                free[freeCount++] = cacheID;
+            }
+        }
+
+        /**
+         * Gives the shard a new number of entries and moves their data to a new
+         * slab slice. Asks the policy for victims until it has ordered every
+         * unpinned block from least to most worth keeping, puts the pinned ones
+         * after them (unpinning those over the new pin limit), writes back and
+         * drops the ones that don't fit, then renumbers the rest into the new
+         * page table and a new policy in that order (the policy's history beyond
+         * that order, e.g. ARC's ghost lists, starts over).
+         * Waits for loads to finish first, and holds the lock throughout.
+         * @param newSlab slab the shard's data moves to
+         * @param newBase offset of the shard's slice in newSlab
+         * @param cacheBlocks new number of entries
+         * @param stage buffer for writing back dropped dirty blocks
+         * @return false if a dropped dirty block couldn't be written back, the
+         * shard is left as it was then (the blocks written so far are clean)
+         */
+        boolean rebuild(byte[] newSlab, int newBase, int cacheBlocks, byte[] stage) {
+            awaitLoads();
+            Entry[] order = new Entry[resident()];
+            int n = 0;
+            int f;
+            while (n < order.length && (f = policy.victim(-1, this)) != -1) {
+                order[n++] = pageTable[f];
+            }
+            int unpinned = n;
+            for (Entry e : pageTable) {
+                if (e.pins > 0) {
+                    order[n++] = e;
+                }
+            }
+            int drop = Math.max(0, n - cacheBlocks);
+            for (int i = 0; i < drop; i++) {
+                Entry e = order[i];
+                if (e.dirtyBit == 1) {
+                    copyOut(e.id, stage);
+                    if (SysLib.rawwrite(e.blockFrameNumber, stage) != Kernel.OK) {
+                        //the policy gets its blocks back, least worth keeping first
+                        for (int j = 0; j < unpinned; j++) {
+                            policy.insert(order[j].id, order[j].blockFrameNumber);
+                        }
+                        return false;
+                    }
+                    setClean(e);
+                }
+            }
+            int keepPinned = pinLimit(cacheBlocks);
+            for (int i = unpinned; i < n; i++) {
+                if (keepPinned > 0) {
+                    keepPinned--;
+                }
+                else {
+                    order[i].pins = 0;
+                    pinned--;
+                }
+            }
+            for (int i = 0; i < drop; i++) {
+                stats.evictions.increment();
+                release(order[i].id);
+            }
+            Entry[] table = new Entry[cacheBlocks];
+            BlockIndex newIndex = new BlockIndex(cacheBlocks);
+            EvictionPolicy newPolicy = newPolicy(policyName, cacheBlocks);
+            for (int i = drop; i < n; i++) {
+                Entry e = order[i];
+                int id = i - drop;
+                System.arraycopy(slab, base + e.id * blockSize, newSlab, newBase + id * blockSize, blockSize);
+                e.id = id;
+                table[id] = e;
+                newIndex.put(e.blockFrameNumber, id);
+                newPolicy.insert(id, e.blockFrameNumber);
+            }
+            free = new int[cacheBlocks];
+            freeCount = 0;
+            for (int i = cacheBlocks - 1; i >= n - drop; i--) {
+                table[i] = new Entry(i);
+                free[freeCount++] = i;
+            }
+            pageTable = table;
+            index = newIndex;
+            policy = newPolicy;
+            slab = newSlab;
+            base = newBase;
+            return true;
         }
     }
 
-    
+    private Shard[] shards = null;
+    private final Object resizeLock = new Object(); //one resize at a time
+    private byte[] slab = null; //data of every cache block
+    private int blockSize = 0;
+    //per thread block buffer for disk I/O done outside the shard locks
+    private final ThreadLocal<byte[]> staging = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[blockSize];
+        }
+    };
+    //when set, every read and write logs its block number here (see CacheSim)
+    private volatile PrintStream trace = null;
+    private final CacheStats stats = new CacheStats();
+    private volatile int pinQuota = 25; //percent of each shard's blocks that may be pinned
+
+    private final int diskBlocks; //blocks on the ThreadOS disk
+
+    private final static int DEFAULT_DISK_BLOCKS = 1000;
+    private final static int MAX_SHARDS = 16;
+    private final static int MIN_SHARD_BLOCKS = 4;
+
+    /**
+     * Picks the shard of a block. Uses the high bits of a different multiplier
+     * than BlockIndex so the blocks of one shard still spread over its index.
+     */
+    private Shard shardFor(int blockId) {
+        int h = blockId * 0x85EBCA6B;
+        return shards[(h ^ (h >>> 15)) & (shards.length - 1)];
+    }
+
+    /**
+     * Finishes loading a claimed entry without holding the shard lock: writes
+     * the victim's dirty block (staged by claim) back to its own disk block, then
+     * reads blockId in (data == null) and copies it to out (if not null), or
+     * copies data in as a dirty block. The disk I/O goes through the thread's
+     * staging buffer, the slab is only touched under the lock.
+     * Wakes up the threads waiting on the entry either way.
+     * @return false if the disk write or read failed, the entry is then released
+     */
+    private boolean fill(Shard s, Entry e, int blockId, byte[] data, byte[] out, byte[] stage) {
+        boolean wroteBack = true;
+        if (e.evicting != -1) {
+            wroteBack = SysLib.rawwrite(e.evicting, stage) == Kernel.OK;
+        }
+        boolean read = wroteBack;
+        if (read && data == null) {
+            read = SysLib.rawread(blockId, stage) == Kernel.OK;
+        }
+        synchronized (s) {
+            if (!wroteBack) {
+                //keep the victim's dirty block, blockId never made it in
+                s.index.remove(blockId);
+                e.blockFrameNumber = e.evicting;
+                s.policy.insert(e.id, e.evicting);
+            }
+            else {
+                if (e.evicting != -1) {
+                    s.index.remove(e.evicting);
+                }
+                s.setClean(e);
+                if (!read) {
+                    e.prefetched = false; //nothing to waste
+                    s.release(e.id);
+                }
+                else if (data != null) {
+                    s.copyIn(e.id, data);
+                    s.setDirty(e); //set dirty bit since it was wrote to
+                }
+                else {
+                    s.copyIn(e.id, stage);
+                    if (out != null) {
+                        System.arraycopy(stage, 0, out, 0, Math.min(out.length, blockSize));
+                    }
+                }
+            }
+            e.evicting = -1;
+            e.loading = false;
+            s.notifyAll();
+        }
+        return read;
+    }
+
     /**
      * reads into the buffer[ ] parameter the contents of the cache block specified by
      * blockId from the disk cache if it is in cache (scan the page table to see if it
      * is in memory), otherwise reads the corresponding disk block from the ThreadOS disk 
      * device. Upon an error*, it should return false, otherwise return true.  
+     * A block read from the disk is installed in a cache block (read-allocate), so
+     * the next read of it is a hit.
+     * Sequential reads by a thread also start reading the next blocks ahead.
      * @param blockId block to be red
      * @param buffer where to store read contents
      * @return false on error
      */
-    public synchronized boolean read(int blockId, byte buffer[]) {
+    public boolean read(int blockId, byte buffer[]) {
         //cache.read( param, ( byte[] )args )
-        int cacheID = isInCache(blockId);
-        if (cacheID == -1) {
-            int read = SysLib.rawread(blockId, buffer);
-            if (read != 1) { // i think this is right
-                return false;
-            }
+        if (blockId < 0 || blockId >= diskBlocks) {
+            return false;
         }
-        else {
-            //in cache
-            buffer = pageTable[cacheID].buffer;
-            pageTable[cacheID].secondChance = 1; //used, so reset the secondchance bit
+        long start = System.nanoTime();
+        record(blockId);
+        boolean read = fetch(blockId, buffer);
+        readahead(blockId);
+        stats.readDone(start);
+        return read;
+    }
+
+    //the demand part of read( )
+    private boolean fetch(int blockId, byte buffer[]) {
+        Shard s = shardFor(blockId);
+        byte[] stage = staging.get();
+        Entry e;
+        synchronized (s) {
+            while ((e = s.lookup(blockId)) == null) {
+                //not in cache, so bring it into a free (or victim) cache block
+                Entry claimed = s.claim(blockId, stage);
+                if (claimed != null) {
+                    stats.misses.increment();
+                    e = claimed;
+                    break;
+                }
+                try {
+                    s.wait(); //every block of the shard is loading
+                } catch (InterruptedException ie) {}
+            }
+            if (!e.loading) {
+                //in cache
+                stats.hits.increment();
+                s.policy.hit(e.id);
+                if (e.prefetched) {
+                    e.prefetched = false;
+                    stats.readaheadHits.increment();
+                }
+                s.copyOut(e.id, buffer);
+                return true;
+            }
         }
-        return true;
+        //the disk read happens outside the lock, only threads wanting this block wait
+        return fill(s, e, blockId, null, buffer, stage);
     }
 
-    
     /**
      * writes the contents of buffer[ ]array to the cache block specified by blockId from 
      * the disk cache if it is in cache, otherwise finds a free cache block and writes the
@@ -122,7 +543,8 @@ public class Cache {
      * In here, when a block is not in cache and there are no free blocks, you'll have 
      * to find a victim for replacement. 
      * 
-     * The ThreadOS disk contains 1000 blocks.  You should only return false in the case of 
+     * The ThreadOS disk contains diskBlocks blocks (1000 unless the constructor is told
+     * otherwise).  You should only return false in the case of 
      * an out of bounds blockId.
      * 
      * 
@@ -130,52 +552,41 @@ public class Cache {
      * @param buffer contents to be read
      * @return false if error
      */
-    public synchronized boolean write(int blockId, byte buffer[]) {
-        if (blockId > 1000) { //hardcoded since it says the max is 1000 in the description
+    public boolean write(int blockId, byte buffer[]) {
+        if (blockId < 0 || blockId >= diskBlocks) { //the disk has diskBlocks blocks, 0 - diskBlocks-1
             return false;
         }
-        int cacheID = isInCache(blockId);
-        if (cacheID == -1) {
-            //blockID not associated w/ cache, so get a free cache block
-            cacheID = findFreePage();
-            if (pageTable[cacheID].dirtyBit == 1 && pageTable[cacheID].valid) {
-                //need to write the data back to the disk
-                int wrote = SysLib.rawwrite(cacheID, buffer);
-                if (wrote != 1) {
-                    return false; //had an error
-                }
-            }
-        }
-        //now you have a free cache block to write to
-        //make sure to reset the info bits
-        resetCacheBlock(cacheID);
-        pageTable[cacheID].blockFrameNumber = blockId;
-        //now write the buffer to that cache block
-        pageTable[cacheID].buffer = buffer;
-        pageTable[cacheID].dirtyBit = 1; //set dirty bit since it was wrote to
-        return true;
-    }
-    
-    private void resetCacheBlock(int cacheID) {
-        pageTable[cacheID].dirtyBit = 0;
-        pageTable[cacheID].secondChance = 1;
-        pageTable[cacheID].valid = true;
-        pageTable[cacheID].buffer = null;
-        pageTable[cacheID].blockFrameNumber = -1;
-    }
-    
-    /**
-     * Checks if data associated with the blockID passed is in cache 
-     * @param blockId
-     * @return -1 if couldn't find, cache block id if found
-     */
-    private int isInCache(int blockId) {
-        for (int i = 0; i <pageTable.length; i++) {
-            if (pageTable[i].blockFrameNumber == blockId && pageTable[i].valid) {
-                return i; //found it
+        long start = System.nanoTime();
+        record(blockId);
+        Shard s = shardFor(blockId);
+        byte[] stage = staging.get();
+        Entry e;
+        synchronized (s) {
+            while ((e = s.lookup(blockId)) == null) {
+                //blockID not associated w/ cache, so get a free cache block
+                Entry claimed = s.claim(blockId, stage);
+                if (claimed != null) {
+                    e = claimed;
+                    break;
+                }
+                try {
+                    s.wait(); //every block of the shard is loading
+                } catch (InterruptedException ie) {}
+            }
+            if (!e.loading) {
+                //now copy the buffer into that cache block, the caller keeps its array
+                s.copyIn(e.id, buffer);
+                s.policy.hit(e.id);
+                e.prefetched = false; //overwritten, the read ahead didn't help or hurt
+                s.setDirty(e); //set dirty bit since it was wrote to
+                stats.writeDone(start);
+                return true;
             }
         }
-        return -1; //didn't find it
+        //a new block, write back the victim (if dirty) outside the lock first
+        boolean wrote = fill(s, e, blockId, buffer, null, stage);
+        stats.writeDone(start);
+        return wrote;
     }
 
     /*writes back all dirty blocks to Disk.java and thereafter forces Diskjava to write back
@@ -189,17 +600,11 @@ public class Cache {
      * 
      *  Writes back all dirty blocks to Disk.java  
      *  Forces Disk.java to write back all contents to the DISK file.
+     *  The blocks go out in block number order, see writeBackSorted( ).
      */
-    public synchronized void sync() {
+    public void sync() {
         //write back any cache blocks w/ dirty bit set to disk
-        for (int i = 0; i < pageTable.length; i++) {
-            if (pageTable[i].dirtyBit == 1) {
-                int wrote = SysLib.rawwrite(pageTable[i].blockFrameNumber, pageTable[i].buffer);
-                if (wrote == 1) { //i think supposed to be 1?
-                    pageTable[i].dirtyBit = 0;
-                }
-            }
-        }
+        writeBackSorted(Long.MAX_VALUE, Integer.MAX_VALUE, stats.syncWrites);
     }
 
     /**
@@ -209,19 +614,541 @@ public class Cache {
      * 
      * Writes back all dirty blocks to Disk.java 
      * Forces Disk.java to write back all contents to the DISK file.  
-     * Wipes all cached blocks.  
+     * Wipes all cached blocks, except pinned ones: they stay cached, and
+     * pinned, until they're unpinned.  
      */
-    public synchronized void flush() {
+    public void flush() {
         //write back all dirty bits to disk, and then invalidate all blocks
-        for (int i = 0; i < pageTable.length; i++) {
-            if (pageTable[i].dirtyBit == 1 && pageTable[i].valid) {
-                int wrote = SysLib.rawwrite(pageTable[i].blockFrameNumber, pageTable[i].buffer);
-                if (wrote == 1) { //i think supposed to be 1?
-                    pageTable[i].dirtyBit = 0;
+        writeBackSorted(Long.MAX_VALUE, Integer.MAX_VALUE, stats.syncWrites);
+        byte[] stage = staging.get();
+        for (Shard s : shards) {
+            synchronized (s) {
+                s.awaitLoads();
+                for (int i = 0; i < s.pageTable.length; i++) {
+                    Entry e = s.pageTable[i];
+                    if (e.dirtyBit == 1) { //dirtied again since the write back above
+                        s.copyOut(e.id, stage);
+                        int wrote = SysLib.rawwrite(e.blockFrameNumber, stage);
+                        if (wrote == Kernel.OK) {
+                            s.setClean(e);
+                        }
+                    }
+                    if (e.pins > 0) {
+                        continue; //the pin's owner still counts on it being cached
+                    }
+                    if (e.blockFrameNumber != -1) {
+                        stats.flushInvalidations.increment();
+                    }
+                    s.release(i);
                 }
             }
-            resetCacheBlock(i);
-            pageTable[i].valid = false;
         }
     }
+
+    //readahead window limits, in blocks
+    private final static int MIN_WINDOW = 2;
+    private final static int MAX_QUEUED = 64; //prefetches waiting for the prefetcher
+
+    private int maxWindow = -1; //-1 until set, capacity / 4 by default
+    private Prefetcher prefetcher = null;
+
+    //where each thread is reading: the last block, its window and how far ahead it's prefetched
+    private static class Stream {
+        int last = -2;
+        int window = 0;
+        int ahead = -1;
+    }
+
+    private final ThreadLocal<Stream> streams = new ThreadLocal<Stream>() {
+        protected Stream initialValue() {
+            return new Stream();
+        }
+    };
+
+    /**
+     * Sets the largest readahead window
+     * @param blocks most blocks read ahead of a sequential reader, 0 turns readahead off
+     */
+    public synchronized void setReadahead(int blocks) {
+        maxWindow = Math.max(0, blocks);
+    }
+
+    private synchronized int getMaxWindow() {
+        if (maxWindow == -1) {
+            return getCapacity() / 4; //never more than a quarter of the cache
+        }
+        return maxWindow;
+    }
+
+    /**
+     * Follows the calling thread's access pattern: a read of the block after
+     * its last one doubles its window (up to the maximum) and queues the blocks
+     * up to blockId + window that aren't queued yet, any other read halves the
+     * window and prefetches nothing.
+     */
+    private void readahead(int blockId) {
+        int max = getMaxWindow();
+        if (max < MIN_WINDOW) {
+            return;
+        }
+        Stream st = streams.get();
+        boolean sequential = blockId == st.last + 1;
+        st.last = blockId;
+        if (!sequential) {
+            st.window /= 2;
+            st.ahead = blockId;
+            return;
+        }
+        st.window = Math.min(max, Math.max(MIN_WINDOW, st.window * 2));
+        int to = Math.min(diskBlocks - 1, blockId + st.window);
+        for (int b = Math.max(st.ahead, blockId) + 1; b <= to; b++) {
+            prefetch(b);
+        }
+        st.ahead = Math.max(st.ahead, to);
+    }
+
+    /**
+     * Asks for a block to be read into the cache in the background. Also for
+     * callers that know their next blocks (e.g. the next logical blocks of a file)
+     * @param blockId block that will probably be read soon
+     */
+    public void prefetch(int blockId) {
+        if (blockId < 0 || blockId >= diskBlocks) {
+            return;
+        }
+        Prefetcher p;
+        synchronized (this) {
+            if (prefetcher == null) {
+                prefetcher = new Prefetcher();
+                prefetcher.start();
+            }
+            p = prefetcher;
+        }
+        p.enqueue(blockId);
+    }
+
+    /**
+     * Reads a block into a cache block marked as prefetched, unless it's
+     * already cached or loading
+     */
+    private void load(int blockId) {
+        Shard s = shardFor(blockId);
+        byte[] stage = staging.get();
+        Entry e;
+        synchronized (s) {
+            if (s.isInCache(blockId) != -1) {
+                return;
+            }
+            e = s.claim(blockId, stage);
+            if (e == null) {
+                return; //the shard is busy loading, not worth waiting for
+            }
+            e.prefetched = true;
+            stats.prefetches.increment();
+        }
+        fill(s, e, blockId, null, null, stage);
+    }
+
+    //daemon thread doing the prefetch disk reads
+    private class Prefetcher extends Thread {
+        private final ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+        Prefetcher() {
+            setDaemon(true);
+        }
+
+        synchronized void enqueue(int blockId) {
+            if (queue.size() < MAX_QUEUED) { //drop it, the reader got ahead of the disk
+                queue.addLast(blockId);
+                notify();
+            }
+        }
+
+        private synchronized int dequeue() {
+            while (queue.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {}
+            }
+            return queue.removeFirst();
+        }
+
+        public void run() {
+            while (true) {
+                load(dequeue());
+            }
+        }
+    }
+
+    /**
+     * Starts (or with null, stops) logging the block number of every read and
+     * write, one per line, for replaying in CacheSim
+     */
+    public void setTrace(PrintStream trace) {
+        this.trace = trace;
+    }
+
+    private void record(int blockId) {
+        PrintStream t = trace;
+        if (t != null) {
+            t.println(blockId);
+        }
+    }
+
+    /**
+     * Keeps a block in the cache until it's unpinned, no matter what the
+     * eviction policy thinks of it, e.g. for file system metadata. Reads the
+     * block in if it isn't cached. Pins nest: a block pinned twice needs two
+     * unpin( )s. flush( ) leaves pinned blocks cached.
+     * @param blockId block to pin
+     * @return false if the block is out of bounds or the pin quota is used up
+     */
+    public boolean pin(int blockId) {
+        if (blockId < 0 || blockId >= diskBlocks) {
+            return false;
+        }
+        Shard s = shardFor(blockId);
+        while (true) {
+            synchronized (s) {
+                Entry e = s.lookup(blockId);
+                if (e != null) {
+                    if (e.pins == 0) {
+                        if (s.pinned >= s.pinLimit(s.pageTable.length)) {
+                            return false;
+                        }
+                        s.pinned++;
+                    }
+                    e.pins++;
+                    return true;
+                }
+            }
+            //bring it in and pin it on the next pass (unless it's gone again)
+            if (!fetch(blockId, new byte[blockSize])) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Undoes a pin( )
+     * @param blockId block to unpin
+     * @return false if the block wasn't pinned
+     */
+    public boolean unpin(int blockId) {
+        if (blockId < 0 || blockId >= diskBlocks) {
+            return false;
+        }
+        Shard s = shardFor(blockId);
+        synchronized (s) {
+            Entry e = s.lookup(blockId);
+            if (e == null || e.pins == 0) {
+                return false;
+            }
+            e.pins--;
+            if (e.pins == 0) {
+                s.pinned--;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sets how much of the cache may be pinned. Each shard always keeps at
+     * least one block unpinned (so pinning can't starve the reads and writes of
+     * other blocks) and may pin at least one otherwise. Blocks pinned already
+     * stay pinned.
+     * @param percent of each shard's blocks, 0 turns pinning off
+     */
+    public void setPinQuota(int percent) {
+        pinQuota = Math.max(0, Math.min(100, percent));
+    }
+
+    /**
+     * @return number of pinned cache blocks
+     */
+    public int getPinnedBlocks() {
+        int n = 0;
+        for (Shard s : shards) {
+            synchronized (s) {
+                n += s.pinned;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Grows or shrinks the cache to a new number of cache blocks while it's in
+     * use. The blocks are spread over the same shards as before. A shrinking
+     * shard first evicts its surplus blocks one lock at a time, with the dirty
+     * ones written back outside the lock like any eviction, so only readers of
+     * the block being written wait. Then each shard in turn moves to the new
+     * slab under its lock, which is memory copying only.
+     * @param cacheBlocks new number of cache blocks, at least one per shard
+     * and at most MAX_BLOCKS
+     * @return false if cacheBlocks is out of range, or if a dirty block a
+     * shrinking shard drops couldn't be written back: that shard and the ones
+     * after it keep their old size, the ones before it have the new one
+     */
+    public boolean resize(int cacheBlocks) {
+        if (cacheBlocks < shards.length || cacheBlocks > MAX_BLOCKS) {
+            return false;
+        }
+        byte[] stage = staging.get();
+        synchronized (resizeLock) {
+            byte[] newSlab = new byte[cacheBlocks * blockSize];
+            int base = 0;
+            for (int i = 0; i < shards.length; i++) {
+                Shard s = shards[i];
+                int blocks = cacheBlocks / shards.length + (i < cacheBlocks % shards.length ? 1 : 0);
+                shed(s, blocks, stage);
+                synchronized (s) {
+                    if (!s.rebuild(newSlab, base, blocks, stage)) {
+                        return false;
+                    }
+                }
+                base += blocks * blockSize;
+            }
+            slab = newSlab;
+        }
+        return true;
+    }
+
+    /**
+     * Evicts the shard's policy victims until at most target blocks are cached.
+     * A dirty victim stays mapped and loading while it's written back, as in
+     * claim( ), so a reader of it waits instead of reading the old disk block.
+     * Gives up after one try per entry, rebuild( ) evicts whatever is left.
+     */
+    private void shed(Shard s, int target, byte[] stage) {
+        for (int tries = s.pageTable.length; tries > 0; tries--) {
+            Entry e;
+            synchronized (s) {
+                if (s.resident() <= target) {
+                    return;
+                }
+                int victim = s.policy.victim(-1, s);
+                if (victim == -1) {
+                    return; //all loading
+                }
+                e = s.pageTable[victim];
+                stats.evictions.increment();
+                if (e.dirtyBit == 0) {
+                    s.release(victim);
+                    continue;
+                }
+                stats.dirtyEvictions.increment();
+                e.loading = true;
+                s.copyOut(e.id, stage);
+            }
+            boolean wrote = SysLib.rawwrite(e.blockFrameNumber, stage) == Kernel.OK;
+            synchronized (s) {
+                if (wrote) {
+                    s.release(e.id);
+                }
+                else {
+                    s.policy.insert(e.id, e.blockFrameNumber); //keep it, still dirty
+                }
+                e.loading = false;
+                s.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes back dirty blocks for the background flusher, see writeBackSorted( )
+     * @param dirtiedBefore only blocks dirty since before this time (ms) are written
+     * @param limit the most blocks to write back
+     * @return the number of blocks written back
+     */
+    public int writeBackDirty(long dirtiedBefore, int limit) {
+        return writeBackSorted(dirtiedBefore, limit, stats.flusherWrites);
+    }
+
+    /**
+     * Writes back dirty blocks in ascending block number order. The simulated
+     * disk's seek time grows with the distance between tracks, so one sweep
+     * across the disk (elevator order) costs much less than the page table
+     * order, which is random in block numbers. The dirty blocks are collected
+     * from all shards first, then each is written under its shard lock on its
+     * own, so readers of a shard only ever wait for a single disk write.
+     * Blocks evicted, loading or written by someone else in between are skipped.
+     * @param dirtiedBefore only blocks dirty since before this time (ms) are written
+     * @param limit the most blocks to write back (the lowest numbered ones)
+     * @param counter counts the blocks written
+     * @return the number of blocks written back
+     */
+    private int writeBackSorted(long dirtiedBefore, int limit, LongAdder counter) {
+        int[] blocks = new int[getCapacity()];
+        int n = 0;
+        for (Shard s : shards) {
+            synchronized (s) {
+                for (Entry e : s.pageTable) {
+                    //a loading entry's old block is already being written back
+                    if (e.dirtyBit == 1 && !e.loading && e.dirtiedAt < dirtiedBefore) {
+                        if (n == blocks.length) {
+                            blocks = Arrays.copyOf(blocks, Math.max(1, n * 2)); //the cache grew
+                        }
+                        blocks[n++] = e.blockFrameNumber;
+                    }
+                }
+            }
+        }
+        Arrays.sort(blocks, 0, n);
+        return writeBlocks(blocks, n, limit, counter);
+    }
+
+    /**
+     * Writes back the given blocks that are cached and dirty, in the given
+     * order, one shard lock per block
+     * @param blocks block numbers, the first n are used
+     * @return the number of blocks written back
+     */
+    private int writeBlocks(int[] blocks, int n, int limit, LongAdder counter) {
+        int written = 0;
+        byte[] stage = staging.get();
+        for (int i = 0; i < n && written < limit; i++) {
+            Shard s = shardFor(blocks[i]);
+            synchronized (s) {
+                int id = s.isInCache(blocks[i]);
+                if (id == -1) {
+                    continue;
+                }
+                Entry e = s.pageTable[id];
+                if (e.dirtyBit == 1 && !e.loading && e.blockFrameNumber == blocks[i]) {
+                    s.copyOut(e.id, stage);
+                    if (SysLib.rawwrite(e.blockFrameNumber, stage) == Kernel.OK) {
+                        s.setClean(e);
+                        counter.increment();
+                        written++;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes back the dirty cached blocks among the given ones (e.g. the blocks
+     * of one file), in block number order, and keeps them cached
+     * @param blocks block numbers, ones that aren't cached are skipped
+     * @return the number of blocks written back
+     */
+    public int writeBack(int[] blocks) {
+        int[] sorted = blocks.clone();
+        Arrays.sort(sorted);
+        return writeBlocks(sorted, sorted.length, Integer.MAX_VALUE, stats.syncWrites);
+    }
+
+    /**
+     * Drops the given blocks from the cache without writing them back, for
+     * blocks whose contents nobody needs anymore (e.g. of a deleted file).
+     * The rest of the cache is left alone, unlike flush( ).
+     * @param blocks block numbers, ones that aren't cached are skipped
+     * @return the number of blocks dropped
+     */
+    public int invalidate(int[] blocks) {
+        int dropped = 0;
+        for (int blockId : blocks) {
+            if (blockId < 0 || blockId >= diskBlocks) {
+                continue;
+            }
+            Shard s = shardFor(blockId);
+            synchronized (s) {
+                Entry e = s.lookup(blockId);
+                if (e != null) {
+                    s.release(e.id);
+                    stats.flushInvalidations.increment();
+                    dropped++;
+                }
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return number of cache blocks with the dirty bit set
+     */
+    public int getDirtyBlocks() {
+        int dirty = 0;
+        for (Shard s : shards) {
+            synchronized (s) {
+                dirty += s.dirtyBlocks;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * @return number of cache blocks
+     */
+    public int getCapacity() {
+        int blocks = 0;
+        for (Shard s : shards) {
+            synchronized (s) { //resize( ) replaces the page table
+                blocks += s.pageTable.length;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * @return size of a cache block in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return number of blocks read ahead
+     */
+    public long getPrefetches() {
+        return stats.prefetches.sum();
+    }
+
+    /**
+     * @return number of read ahead blocks that were read while still cached
+     */
+    public long getReadaheadHits() {
+        return stats.readaheadHits.sum();
+    }
+
+    /**
+     * @return number of read ahead blocks evicted or invalidated before being read
+     */
+    public long getWastedPrefetches() {
+        return stats.wastedPrefetches.sum();
+    }
+
+    /**
+     * @return number of reads served from the cache
+     */
+    public long getHits() {
+        return stats.hits.sum();
+    }
+
+    /**
+     * @return number of reads that had to go to the disk
+     */
+    public long getMisses() {
+        return stats.misses.sum();
+    }
+
+    /**
+     * Takes a snapshot of the cache's counters and latency histograms
+     * @param out gets the values laid out as in CacheStats
+     * @return the number of values filled in
+     */
+    public int getStats(long[] out) {
+        int n = stats.snapshot(out);
+        if (n > CacheStats.CAPACITY) {
+            out[CacheStats.CAPACITY] = getCapacity();
+        }
+        if (n > CacheStats.DIRTY_BLOCKS) {
+            out[CacheStats.DIRTY_BLOCKS] = getDirtyBlocks();
+        }
+        if (n > CacheStats.PINNED_BLOCKS) {
+            out[CacheStats.PINNED_BLOCKS] = getPinnedBlocks();
+        }
+        return n;
+    }
 }
@@ -0,0 +1,195 @@
+import java.util.Random;
+
+/**
+ * Benchmarks for the block cache, run from the ThreadOS loader:
+ *   l CacheBench
+ *
+ * Measures the cost of finding a cached block (a hit) with the old page table
+ * scan against the BlockIndex lookup the Cache uses now, at 10, 1k and 64k
+ * cache frames.
+ *
+ * Then reads a hot set of blocks that fits in a 10 frame cache, mixed with a
+ * few one-off blocks, and prints the hit and miss counts to confirm the hot
+ * set stays resident.
+ *
+ * Last, 1, 4 and 16 threads share one cache and read a working set that
+ * (mostly) fits in it, to show how hit throughput scales with the sharded
+ * cache. The simulated disk sleeps on every seek, so misses are kept rare.
+ *
+ * The readahead run reads 200 blocks sequentially and then 100 random
+ * blocks, and prints how many read ahead blocks were used or wasted.
+ *
+ * The sync run dirties 64 blocks scattered over the disk and times sync( ),
+ * which writes them back in block number order.
+ *
+ * At the end it prints the kernel cache's statistics (SysLib.cstats), e.g.
+ * to look at after running Test5 in the same ThreadOS session.
+ */
+class CacheBench extends Thread {
+    final static int[] FRAMES = { 10, 1000, 65536 };
+    final static int LOOKUPS = 20000;
+
+    public CacheBench( String args[] ) {
+    }
+
+    public CacheBench( ) {
+    }
+
+    public void run( ) {
+        hitLatency( false ); // warm up the JIT first
+        hitLatency( true );
+        hotSet( );
+        throughput( );
+        readahead( );
+        syncTime( );
+        long[] stats = new long[CacheStats.SIZE];
+        if ( SysLib.cstats( stats ) == CacheStats.SIZE )
+            SysLib.cout( "kernel " + CacheStats.format( stats ) );
+        SysLib.cout( "CacheBench completed\n" );
+        SysLib.exit( );
+    }
+
+    private void hitLatency( boolean report ) {
+        if ( report )
+            SysLib.cout( "hit latency (ns per lookup)\n" );
+        Random rand = new Random( 430 );
+        for ( int f = 0; f < FRAMES.length; f++ ) {
+            int frames = FRAMES[f];
+            //one resident block per frame, block numbers scattered like a real cache
+            int[] pageTable = new int[frames];
+            BlockIndex index = new BlockIndex( frames );
+            for ( int i = 0; i < frames; i++ ) {
+                pageTable[i] = i * 7 + 3;
+                index.put( pageTable[i], i );
+            }
+            int[] wanted = new int[LOOKUPS];
+            for ( int i = 0; i < LOOKUPS; i++ )
+                wanted[i] = pageTable[rand.nextInt( frames )];
+
+            long found = 0;
+            long start = System.nanoTime( );
+            for ( int i = 0; i < LOOKUPS; i++ )
+                found += scan( pageTable, wanted[i] );
+            long scanNs = ( System.nanoTime( ) - start ) / LOOKUPS;
+
+            start = System.nanoTime( );
+            for ( int i = 0; i < LOOKUPS; i++ )
+                found += index.get( wanted[i] );
+            long indexNs = ( System.nanoTime( ) - start ) / LOOKUPS;
+
+            if ( report )
+                SysLib.cout( "  frames = " + frames + ": scan " + scanNs +
+                         ", index " + indexNs + " (" + found + ")\n" );
+        }
+    }
+
+    private void hotSet( ) {
+        Cache cache = new Cache( 512, 10 );
+        byte[] buffer = new byte[512];
+        for ( int round = 0; round < 50; round++ ) {
+            for ( int blk = 100; blk < 106; blk++ )
+                cache.read( blk, buffer );
+            cache.read( 200 + round, buffer ); // a block read only once
+        }
+        SysLib.cout( "hot set of 6 blocks, 50 rounds: hits " + cache.getHits( ) +
+                     ", misses " + cache.getMisses( ) + "\n" );
+    }
+
+    private void throughput( ) {
+        final int[] THREADS = { 1, 4, 16 };
+        final int READS = 64000; // split over the threads
+        SysLib.cout( "throughput, 64 frames, 32 block working set\n" );
+        for ( int t = 0; t < THREADS.length; t++ ) {
+            Cache cache = new Cache( 512, 64 );
+            byte[] buffer = new byte[512];
+            for ( int blk = 300; blk < 332; blk++ )
+                cache.read( blk, buffer );
+            Reader[] readers = new Reader[THREADS[t]];
+            for ( int i = 0; i < readers.length; i++ )
+                readers[i] = new Reader( cache, READS / readers.length, i );
+            long start = System.currentTimeMillis( );
+            for ( int i = 0; i < readers.length; i++ )
+                readers[i].start( );
+            for ( int i = 0; i < readers.length; i++ ) {
+                try {
+                    readers[i].join( );
+                } catch ( InterruptedException e ) {}
+            }
+            long elapsed = Math.max( 1, System.currentTimeMillis( ) - start );
+            SysLib.cout( "  threads = " + THREADS[t] + ": " + READS / elapsed +
+                         " reads/ms, hits " + cache.getHits( ) +
+                         ", misses " + cache.getMisses( ) + "\n" );
+        }
+    }
+
+    private void readahead( ) {
+        Cache cache = new Cache( 512, 64 );
+        byte[] buffer = new byte[512];
+        long start = System.currentTimeMillis( );
+        for ( int blk = 400; blk < 600; blk++ )
+            cache.read( blk, buffer );
+        long sequential = System.currentTimeMillis( ) - start;
+        Random rand = new Random( 430 );
+        for ( int i = 0; i < 100; i++ )
+            cache.read( rand.nextInt( 1000 ), buffer );
+        SysLib.cout( "readahead, 64 frames: 200 sequential reads in " + sequential +
+                     " ms, then 100 random reads\n" );
+        SysLib.cout( "  hits " + cache.getHits( ) + ", misses " + cache.getMisses( ) +
+                     ", prefetched " + cache.getPrefetches( ) +
+                     ", readahead hits " + cache.getReadaheadHits( ) +
+                     ", wasted " + cache.getWastedPrefetches( ) + "\n" );
+        long[] stats = new long[CacheStats.SIZE];
+        cache.getStats( stats );
+        SysLib.cout( CacheStats.format( stats ) );
+    }
+
+    private void syncTime( ) {
+        Cache cache = new Cache( 512, 256 );
+        cache.setReadahead( 0 );
+        byte[] buffer = new byte[512];
+        boolean[] picked = new boolean[1000];
+        Random rand = new Random( 430 );
+        for ( int i = 0; i < 64; i++ ) {
+            int blk;
+            do {
+                blk = rand.nextInt( 1000 );
+            } while ( picked[blk] );
+            picked[blk] = true;
+            // rewrite what's on the disk, so the DISK file doesn't change
+            cache.read( blk, buffer );
+            cache.write( blk, buffer );
+        }
+        int dirty = cache.getDirtyBlocks( );
+        long start = System.currentTimeMillis( );
+        cache.sync( );
+        SysLib.cout( "sync of " + dirty + " dirty blocks scattered over the disk: " +
+                     ( System.currentTimeMillis( ) - start ) + " ms\n" );
+    }
+
+    //a plain Java thread (not a ThreadOS one) hammering a shared cache
+    private static class Reader extends Thread {
+        private final Cache cache;
+        private final int reads;
+        private final Random rand;
+
+        Reader( Cache cache, int reads, int seed ) {
+            this.cache = cache;
+            this.reads = reads;
+            this.rand = new Random( seed );
+        }
+
+        public void run( ) {
+            byte[] buffer = new byte[512];
+            for ( int i = 0; i < reads; i++ )
+                cache.read( 300 + rand.nextInt( 32 ), buffer );
+        }
+    }
+
+    //the lookup Cache.isInCache did before the index
+    private int scan( int[] pageTable, int blockId ) {
+        for ( int i = 0; i < pageTable.length; i++ )
+            if ( pageTable[i] == blockId )
+                return i;
+        return -1;
+    }
+}
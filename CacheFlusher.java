@@ -0,0 +1,116 @@
+/**
+ * Background write-back daemon for the Cache, started by the Kernel at BOOT.
+ *
+ * Every interval it looks at the cache and writes dirty blocks back to the
+ * disk when
+ *  - the dirty ratio passes the high watermark, then it writes back until
+ *    the ratio is down to the low watermark, or
+ *  - a block has been dirty for longer than the maximum age.
+ * That way evictions mostly find clean victims and sync( ) at shutdown has
+ * little left to write.
+ *
+ * The Kernel sets the tunables from the flush=high,low, flushage= and
+ * flushinterval= boot arguments, and CSTATS reports the runs and bytes.
+ */
+public class CacheFlusher extends Thread {
+    private final Cache cache;
+
+    //tunables, in percent of the cache blocks and in milliseconds
+    private int highWatermark = 50;
+    private int lowWatermark = 20;
+    private long maxAge = 3000;
+    private long interval = 500;
+
+    private long flushes = 0;      //runs that wrote at least one block
+    private long bytesWritten = 0; //bytes written back by those runs
+
+    public CacheFlusher(Cache cache) {
+        this.cache = cache;
+        setDaemon(true); //never keeps ThreadOS from exiting
+    }
+
+    /**
+     * Sets the dirty ratios the flusher works between
+     * @param high percent of dirty blocks that starts a write-back
+     * @param low percent of dirty blocks the write-back stops at
+     * @return false if the percentages don't make sense
+     */
+    public synchronized boolean setWatermarks(int high, int low) {
+        if (low < 0 || high > 100 || low > high) {
+            return false;
+        }
+        highWatermark = high;
+        lowWatermark = low;
+        return true;
+    }
+
+    /**
+     * @param maxAge longest time in ms a block stays dirty (give or take an interval)
+     */
+    public synchronized void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param interval time in ms between two looks at the cache
+     */
+    public synchronized void setInterval(long interval) {
+        this.interval = Math.max(1, interval);
+    }
+
+    /**
+     * @return how many flusher runs wrote something back
+     */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * @return how many bytes the flusher wrote back
+     */
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public void run() {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = interval;
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {}
+            flushOnce();
+        }
+    }
+
+    /**
+     * One look at the cache: write back for the high watermark first, then
+     * anything older than the maximum age
+     * @return the number of blocks written back
+     */
+    int flushOnce() {
+        int high, low;
+        long age;
+        synchronized (this) {
+            high = highWatermark;
+            low = lowWatermark;
+            age = maxAge;
+        }
+        int capacity = cache.getCapacity();
+        int dirty = cache.getDirtyBlocks();
+        int written = 0;
+        if (dirty * 100 > high * capacity) {
+            written += cache.writeBackDirty(Long.MAX_VALUE, dirty - low * capacity / 100);
+        }
+        written += cache.writeBackDirty(System.currentTimeMillis() - age, Integer.MAX_VALUE);
+        if (written > 0) {
+            synchronized (this) {
+                flushes++;
+                bytesWritten += (long) written * cache.getBlockSize();
+            }
+        }
+        return written;
+    }
+}
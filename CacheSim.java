@@ -0,0 +1,123 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Trace driven simulator for the cache eviction policies, run from the
+ * ThreadOS loader:
+ *   l CacheSim [trace file] [cache blocks]
+ *
+ * A trace file has one block number per line, as recorded by booting with
+ * trace=file (see Kernel BOOT). Without a file it uses a made up trace that
+ * alternates metadata-like phases (a small hot set) with long sequential
+ * scans. Every policy in Cache.POLICIES replays the trace on a cache of the
+ * given size (default 10 blocks, as in BOOT) and the hit ratios are printed.
+ * The replay uses one policy for the whole cache, like a single Cache shard.
+ */
+class CacheSim extends Thread {
+    final static int DEFAULTBLOCKS = 10;
+    private String traceFile = null;
+    private int cacheBlocks = DEFAULTBLOCKS;
+
+    public CacheSim( String args[] ) {
+        if ( args.length > 0 )
+            traceFile = args[0];
+        if ( args.length > 1 )
+            cacheBlocks = Integer.parseInt( args[1] );
+    }
+
+    public CacheSim( ) {
+    }
+
+    public void run( ) {
+        int[] trace = ( traceFile != null ) ? readTrace( traceFile ) : makeTrace( );
+        if ( trace == null ) {
+            SysLib.cout( "CacheSim: cannot read " + traceFile + "\n" );
+            SysLib.exit( );
+            return;
+        }
+        SysLib.cout( trace.length + " accesses, " + cacheBlocks + " cache blocks\n" );
+        for ( int i = 0; i < Cache.POLICIES.length; i++ ) {
+            int hits = replay( Cache.POLICIES[i], trace );
+            SysLib.cout( "  " + Cache.POLICIES[i] + ": hit ratio " +
+                         ( hits * 1000L / Math.max( 1, trace.length ) ) / 10.0 + "%\n" );
+        }
+        SysLib.exit( );
+    }
+
+    /**
+     * Runs the trace through one policy the way a Cache shard uses it
+     * @return number of hits
+     */
+    private int replay( String policyName, int[] trace ) {
+        EvictionPolicy policy = Cache.newPolicy( policyName, cacheBlocks );
+        EvictionPolicy.FrameFilter all = new EvictionPolicy.FrameFilter( ) {
+            public boolean evictable( int frame ) {
+                return true;
+            }
+        };
+        BlockIndex index = new BlockIndex( cacheBlocks );
+        int[] frames = new int[cacheBlocks];
+        int used = 0;
+        int hits = 0;
+        for ( int i = 0; i < trace.length; i++ ) {
+            int frame = index.get( trace[i] );
+            if ( frame != -1 ) {
+                hits++;
+                policy.hit( frame );
+                continue;
+            }
+            if ( used < cacheBlocks )
+                frame = used++;
+            else {
+                frame = policy.victim( trace[i], all );
+                index.remove( frames[frame] );
+            }
+            frames[frame] = trace[i];
+            index.put( trace[i], frame );
+            policy.insert( frame, trace[i] );
+        }
+        return hits;
+    }
+
+    private int[] readTrace( String file ) {
+        ArrayList<Integer> blocks = new ArrayList<Integer>( );
+        try {
+            BufferedReader in = new BufferedReader( new FileReader( file ) );
+            String line;
+            while ( ( line = in.readLine( ) ) != null ) {
+                line = line.trim( );
+                if ( line.length( ) > 0 )
+                    blocks.add( Integer.parseInt( line ) );
+            }
+            in.close( );
+        } catch ( IOException e ) {
+            return null;
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+        int[] trace = new int[blocks.size( )];
+        for ( int i = 0; i < trace.length; i++ )
+            trace[i] = blocks.get( i );
+        return trace;
+    }
+
+    // 20 phases of 1000 accesses: metadata phases only touch an 8 block hot set
+    // (superblock, inodes, a directory), scan phases read the disk sequentially
+    // with every third access still going to the hot set
+    private int[] makeTrace( ) {
+        Random rand = new Random( 430 );
+        int[] trace = new int[20000];
+        int scan = 0;
+        for ( int i = 0; i < trace.length; i++ ) {
+            boolean metadata = ( i / 1000 ) % 2 == 0;
+            if ( metadata || rand.nextInt( 3 ) == 0 )
+                trace[i] = rand.nextInt( 8 );
+            else
+                trace[i] = 100 + scan++ % 900;
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of a Cache. Every counter is a LongAdder,
+ * which keeps a cell per contending thread, so recording from many threads at
+ * once doesn't fight over one cache line and needs no lock. Reading them sums
+ * the cells, which is only done for a snapshot.
+ *
+ * snapshot( ) lays the values out in a long[] at the indexes below, the same
+ * layout SysLib.cstats( ) fills in for user programs. The histograms count
+ * operations by latency: bucket i holds the ones that took [2^i, 2^(i+1)) ns,
+ * the last bucket everything slower.
+ */
+public class CacheStats {
+    //indexes into a snapshot
+    public final static int HITS = 0;
+    public final static int MISSES = 1;
+    public final static int EVICTIONS = 2;        //blocks dropped to make room for another
+    public final static int DIRTY_EVICTIONS = 3;  //of those, the ones written back first
+    public final static int SYNC_WRITES = 4;      //blocks written back by sync( )
+    public final static int FLUSH_INVALIDATIONS = 5; //blocks dropped by flush( )
+    public final static int PREFETCHES = 6;
+    public final static int READAHEAD_HITS = 7;
+    public final static int WASTED_PREFETCHES = 8;
+    public final static int FLUSHER_WRITES = 9;   //blocks written back by the CacheFlusher
+    public final static int CAPACITY = 10;
+    public final static int DIRTY_BLOCKS = 11;
+    public final static int DISK_READS = 12;      //disk requests of the whole kernel,
+    public final static int DISK_WRITES = 13;     //filled in by the CSTATS syscall
+    public final static int PINNED_BLOCKS = 14;
+    public final static int FLUSHER_RUNS = 15;    //CacheFlusher runs that wrote something,
+    public final static int FLUSHER_BYTES = 16;   //and the bytes they wrote, filled in by CSTATS
+    public final static int READ_LATENCY = 17;    //first read( ) histogram bucket
+    public final static int BUCKETS = 32;
+    public final static int WRITE_LATENCY = READ_LATENCY + BUCKETS;
+    public final static int SIZE = WRITE_LATENCY + BUCKETS;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder dirtyEvictions = new LongAdder();
+    final LongAdder syncWrites = new LongAdder();
+    final LongAdder flushInvalidations = new LongAdder();
+    final LongAdder prefetches = new LongAdder();
+    final LongAdder readaheadHits = new LongAdder();
+    final LongAdder wastedPrefetches = new LongAdder();
+    final LongAdder flusherWrites = new LongAdder();
+    private final LongAdder[] readLatency = newHistogram();
+    private final LongAdder[] writeLatency = newHistogram();
+
+    private static LongAdder[] newHistogram() {
+        LongAdder[] h = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            h[i] = new LongAdder();
+        }
+        return h;
+    }
+
+    //log2 bucket of a latency in ns
+    private static int bucket(long ns) {
+        if (ns <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(ns));
+    }
+
+    /**
+     * @param start System.nanoTime( ) when the read started
+     */
+    void readDone(long start) {
+        readLatency[bucket(System.nanoTime() - start)].increment();
+    }
+
+    /**
+     * @param start System.nanoTime( ) when the write started
+     */
+    void writeDone(long start) {
+        writeLatency[bucket(System.nanoTime() - start)].increment();
+    }
+
+    /**
+     * Copies the counters into an array. The counters aren't frozen while this
+     * runs, so with concurrent cache use the values are close but not exact.
+     * @param out gets the values at the indexes above, a shorter array gets the first ones
+     * @return the number of values copied
+     */
+    int snapshot(long[] out) {
+        long[] all = new long[SIZE];
+        all[HITS] = hits.sum();
+        all[MISSES] = misses.sum();
+        all[EVICTIONS] = evictions.sum();
+        all[DIRTY_EVICTIONS] = dirtyEvictions.sum();
+        all[SYNC_WRITES] = syncWrites.sum();
+        all[FLUSH_INVALIDATIONS] = flushInvalidations.sum();
+        all[PREFETCHES] = prefetches.sum();
+        all[READAHEAD_HITS] = readaheadHits.sum();
+        all[WASTED_PREFETCHES] = wastedPrefetches.sum();
+        all[FLUSHER_WRITES] = flusherWrites.sum();
+        for (int i = 0; i < BUCKETS; i++) {
+            all[READ_LATENCY + i] = readLatency[i].sum();
+            all[WRITE_LATENCY + i] = writeLatency[i].sum();
+        }
+        int n = Math.min(out.length, SIZE);
+        System.arraycopy(all, 0, out, 0, n);
+        return n;
+    }
+
+    /**
+     * Formats a snapshot for printing with SysLib.cout( )
+     * @param s a snapshot of SIZE values
+     */
+    public static String format(long[] s) {
+        StringBuffer b = new StringBuffer();
+        b.append("cache: " + s[CAPACITY] + " blocks, " + s[DIRTY_BLOCKS] + " dirty, " +
+                 s[PINNED_BLOCKS] + " pinned\n");
+        if (s[DISK_READS] + s[DISK_WRITES] > 0) {
+            b.append("  disk reads " + s[DISK_READS] + ", disk writes " + s[DISK_WRITES] + "\n");
+        }
+        b.append("  hits " + s[HITS] + ", misses " + s[MISSES]);
+        long reads = s[HITS] + s[MISSES];
+        if (reads > 0) {
+            b.append(" (" + (s[HITS] * 100 / reads) + "% hit)");
+        }
+        b.append("\n  evictions " + s[EVICTIONS] + " (" + s[DIRTY_EVICTIONS] + " dirty)" +
+                 ", sync writes " + s[SYNC_WRITES] +
+                 ", flush invalidations " + s[FLUSH_INVALIDATIONS] +
+                 ", flusher writes " + s[FLUSHER_WRITES] + "\n");
+        if (s[FLUSHER_RUNS] > 0) {
+            b.append("  flusher runs " + s[FLUSHER_RUNS] + ", " + s[FLUSHER_BYTES] +
+                     " bytes written back\n");
+        }
+        b.append("  prefetched " + s[PREFETCHES] + ", readahead hits " + s[READAHEAD_HITS] +
+                 ", wasted " + s[WASTED_PREFETCHES] + "\n");
+        histogram(b, "read", s, READ_LATENCY);
+        histogram(b, "write", s, WRITE_LATENCY);
+        return b.toString();
+    }
+
+    //one line per non empty bucket, e.g. "  read >= 1024 ns: 12"
+    private static void histogram(StringBuffer b, String name, long[] s, int from) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (s[from + i] > 0) {
+                b.append("  " + name + " >= " + (1L << i) + " ns: " + s[from + i] + "\n");
+            }
+        }
+    }
+}
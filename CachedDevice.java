@@ -0,0 +1,44 @@
+/**
+ * A BlockDevice on top of a Cache: reads of cached blocks and all writes are
+ * served from memory, dirty blocks reach the disk on eviction, from the
+ * CacheFlusher or on sync( ).
+ */
+public class CachedDevice implements BlockDevice {
+    private final Cache cache;
+
+    public CachedDevice(Cache cache) {
+        this.cache = cache;
+    }
+
+    public int read(int blockId, byte[] buffer) {
+        return cache.read(blockId, buffer) ? Kernel.OK : Kernel.ERROR;
+    }
+
+    public int write(int blockId, byte[] buffer) {
+        return cache.write(blockId, buffer) ? Kernel.OK : Kernel.ERROR;
+    }
+
+    public void sync() {
+        cache.sync();
+    }
+
+    public void writeBack(int[] blocks) {
+        cache.writeBack(blocks);
+    }
+
+    public void invalidate(int[] blocks) {
+        cache.invalidate(blocks);
+    }
+
+    public boolean pin(int blockId) {
+        return cache.pin(blockId);
+    }
+
+    public void unpin(int blockId) {
+        cache.unpin(blockId);
+    }
+
+    public void prefetch(int blockId) {
+        cache.prefetch(blockId);
+    }
+}
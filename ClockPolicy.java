@@ -0,0 +1,48 @@
+/**
+ * Second chance (CLOCK): the hand sweeps the frames, clearing reference bits,
+ * and takes the first frame whose bit is already clear. This is what the
+ * Cache always did, now behind EvictionPolicy.
+ */
+class ClockPolicy implements EvictionPolicy {
+    //This is the reference bit for the second chance algorithm
+    //set to 1 when used, set to 0 when searching for a replacement
+    private final byte[] secondChance;
+    private final boolean[] resident;
+    private int hand = 0;
+
+    ClockPolicy(int frames) {
+        secondChance = new byte[frames];
+        resident = new boolean[frames];
+    }
+
+    public void hit(int frame) {
+        secondChance[frame] = 1; //used, so reset the secondchance bit
+    }
+
+    public void insert(int frame, int blockId) {
+        resident[frame] = true;
+        secondChance[frame] = 1;
+    }
+
+    public void remove(int frame) {
+        resident[frame] = false;
+    }
+
+    public int victim(int blockId, FrameFilter filter) {
+        int length = resident.length;
+        //two sweeps of the hand are enough to find a 0 bit
+        for (int swept = 0; swept < 2 * length; swept++) {
+            int f = hand;
+            hand = (hand + 1) % length;
+            if (!resident[f] || !filter.evictable(f)) {
+                continue;
+            }
+            if (secondChance[f] == 0) {
+                resident[f] = false;
+                return f;
+            }
+            secondChance[f] = 0;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.Arrays;
+
+/**
+ * File blocks written with delayed allocation (see FileSystem.setDelayedAllocation)
+ * that don't have a disk block yet. Each frame holds a block's data, tagged
+ * with the file's inode number and the block's number within the file, and
+ * a BlockIndex finds the frame for a tag.
+ *
+ * Not synchronized, the FileSystem holds its own lock around it.
+ */
+class DelayedBlocks {
+    private final int blockSize;
+    private final int blocksPerFile; //tags are iNumber * blocksPerFile + logical
+    private final byte[] slab;       //frame i's data starts at i * blockSize
+    private final int[] tags;        //-1 for a free frame
+    private final int[] freeFrames;  //stack of free frames
+    private int freeCount;
+    private final BlockIndex index;  //tag -> frame
+
+    /**
+     * @param blockSize bytes in a block
+     * @param frames most blocks held at once
+     * @param blocksPerFile most blocks a file can have
+     */
+    DelayedBlocks(int blockSize, int frames, int blocksPerFile) {
+        this.blockSize = blockSize;
+        this.blocksPerFile = blocksPerFile;
+        slab = new byte[frames * blockSize];
+        tags = new int[frames];
+        freeFrames = new int[frames];
+        index = new BlockIndex(frames);
+        clear();
+    }
+
+    private int tag(short iNumber, int logical) {
+        return iNumber * blocksPerFile + logical;
+    }
+
+    /**
+     * Copies out a block's data
+     * @return false if the block isn't held here
+     */
+    boolean read(short iNumber, int logical, byte[] buffer) {
+        int frame = index.get(tag(iNumber, logical));
+        if (frame == -1) {
+            return false;
+        }
+        System.arraycopy(slab, frame * blockSize, buffer, 0, blockSize);
+        return true;
+    }
+
+    /**
+     * Keeps a block's data, replacing what was held for the block
+     * @return false if every frame is taken
+     */
+    boolean write(short iNumber, int logical, byte[] buffer) {
+        int t = tag(iNumber, logical);
+        int frame = index.get(t);
+        if (frame == -1) {
+            if (freeCount == 0) {
+                return false;
+            }
+            frame = freeFrames[--freeCount];
+            tags[frame] = t;
+            index.put(t, frame);
+        }
+        System.arraycopy(buffer, 0, slab, frame * blockSize, blockSize);
+        return true;
+    }
+
+    /**
+     * Lets go of a block
+     */
+    void remove(short iNumber, int logical) {
+        int frame = index.remove(tag(iNumber, logical));
+        if (frame != -1) {
+            tags[frame] = -1;
+            freeFrames[freeCount++] = frame;
+        }
+    }
+
+    /**
+     * Lets go of every block of a file
+     */
+    void removeFile(short iNumber) {
+        int[] logicals = blocks(iNumber);
+        for (int i = 0; i < logicals.length; i++) {
+            remove(iNumber, logicals[i]);
+        }
+    }
+
+    /**
+     * @return the blocks held for a file, in file order
+     */
+    int[] blocks(short iNumber) {
+        int[] logicals = new int[tags.length];
+        int n = 0;
+        for (int i = 0; i < tags.length; i++) {
+            if (tags[i] != -1 && tags[i] / blocksPerFile == iNumber) {
+                logicals[n++] = tags[i] % blocksPerFile;
+            }
+        }
+        logicals = Arrays.copyOf(logicals, n);
+        Arrays.sort(logicals);
+        return logicals;
+    }
+
+    /**
+     * @return the inode numbers of the files with blocks held here
+     */
+    short[] files() {
+        short[] files = new short[tags.length];
+        int n = 0;
+        for (int i = 0; i < tags.length; i++) {
+            if (tags[i] == -1) {
+                continue;
+            }
+            short iNumber = (short) (tags[i] / blocksPerFile);
+            int j = 0;
+            while (j < n && files[j] != iNumber) {
+                j++;
+            }
+            if (j == n) {
+                files[n++] = iNumber;
+            }
+        }
+        return Arrays.copyOf(files, n);
+    }
+
+    /**
+     * @return the number of blocks held
+     */
+    int size() {
+        return tags.length - freeCount;
+    }
+
+    /**
+     * @return the most blocks held at once
+     */
+    int capacity() {
+        return tags.length;
+    }
+
+    /**
+     * Lets go of every block
+     */
+    void clear() {
+        Arrays.fill(tags, -1);
+        for (int i = 0; i < freeFrames.length; i++) {
+            freeFrames[i] = freeFrames.length - 1 - i;
+        }
+        freeCount = freeFrames.length;
+        index.clear();
+    }
+}
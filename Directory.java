@@ -11,6 +11,7 @@ public class Directory {
     private final static int ERROR = -1; //sets the error to -1
     
     private int dirSize; // directory size
+    private int freeInodes; // entries without a file, kept up to date for statfs
    
     // Directory entries
    private int fsize[];        // each element stores a different file size.
@@ -35,6 +36,7 @@ public class Directory {
       root.getChars( 0, fsize[0], fnames[0], 0 ); // fnames[0] includes "/"
        
        dirSize = maxInumber; //initializes dirSize
+       freeInodes = dirSize - 1; //everything but "/"
    }
 
 //--------------------------- bytes2directory ----------------------------------
@@ -72,6 +74,14 @@ public class Directory {
            
            offset += maxJavaBytes; //increment offset
        }
+       
+       //counts the free entries once, ialloc and ifree keep the count from here
+       freeInodes = 0;
+       for (int i = 0; i < dirSize; i++){
+           if (fsize[i] == 0){
+               freeInodes++;
+           }
+       }
    }
 
 //--------------------------- directory2bytes ----------------------------------
@@ -130,6 +140,7 @@ public class Directory {
                
                //copies from the string
                filename.getChars(0, fsize[i], fnames[i], 0);
+               freeInodes--;
                return i; //returns the inode number
            }
        }
@@ -145,8 +156,9 @@ public class Directory {
  */
    public boolean ifree( short iNumber ) {
        //checks to see if the inode number is valid
-       if (iNumber < maxChars && fsize[iNumber] > 0){
+       if (iNumber > 0 && iNumber < dirSize && fsize[iNumber] > 0){
            fsize[iNumber] = 0; //deallocates the inode number
+           freeInodes++;
            
            return true; //after deallocation
        } else { //false when the inode number is invalid
@@ -155,6 +167,15 @@ public class Directory {
    }
 
     
+//------------------------------- freeInodes() ---------------------------------
+/**
+ * Returns the number of inode numbers ialloc() can still hand out, without
+ * going through the directory.
+ */
+   public int freeInodes( ) {
+       return freeInodes;
+   }
+
 //--------------------------------- namei() -----------------------------------
 /**
  * The namei() method below is used to return the inode number corresponding to
@@ -0,0 +1,100 @@
+/**
+ * The on-disk format versions of the file system, recorded in the superblock
+ * (see Superblock). They differ in the width of a block pointer, which sets
+ * how large a disk they can address:
+ *  - version 1, 32 byte inodes (16 per block) with short block pointers, and
+ *    256 pointers in an indirect block. Disks up to 32767 blocks, files up to
+ *    11 + 256 blocks.
+ *  - version 2, 64 byte inodes (8 per block) with int block pointers, and 128
+ *    pointers in an indirect block. The inode has room for a double indirect
+ *    pointer too, to a block of 128 indirect blocks. Disks of any size, files
+ *    up to 11 + 128 + 128 * 128 blocks.
+ * format( ) picks the first version that can address the whole disk, so the
+ * simulated 1000 block disk keeps version 1.
+ */
+class DiskFormat {
+    final static DiskFormat V1 = new DiskFormat(1, 32, 2, false);
+    final static DiskFormat V2 = new DiskFormat(2, 64, 4, true);
+
+    final static int DIRECT_POINTERS = 11;
+
+    final int version;
+    final int inodeSize;        //bytes an inode takes in an inode block
+    final int pointerSize;      //bytes of a block pointer
+    final int inodesPerBlock;
+    final int indirectPointers; //block pointers in an indirect block
+    final boolean doubleIndirect; //inodes have a double indirect pointer
+    final int maxFileBlocks;    //most blocks a file can have
+    final int maxDiskBlocks;    //most blocks a disk can have
+
+    private DiskFormat(int version, int inodeSize, int pointerSize, boolean doubleIndirect) {
+        this.version = version;
+        this.inodeSize = inodeSize;
+        this.pointerSize = pointerSize;
+        inodesPerBlock = Disk.blockSize / inodeSize;
+        indirectPointers = Disk.blockSize / pointerSize;
+        this.doubleIndirect = doubleIndirect;
+        maxFileBlocks = DIRECT_POINTERS + indirectPointers
+                + (doubleIndirect ? indirectPointers * indirectPointers : 0);
+        maxDiskBlocks = (pointerSize == 2) ? Short.MAX_VALUE : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param version the version in a superblock, 0 for a disk formatted
+     * before versions were recorded
+     * @return the format, null if there's no such version
+     */
+    static DiskFormat forVersion(int version) {
+        if (version == 0 || version == 1) {
+            return V1;
+        }
+        return (version == 2) ? V2 : null;
+    }
+
+    /**
+     * @return the format a disk of that many blocks is formatted with
+     */
+    static DiskFormat forDisk(int totalBlocks) {
+        return (totalBlocks <= V1.maxDiskBlocks) ? V1 : V2;
+    }
+
+    /**
+     * @return the most blocks a file can have in any format
+     */
+    static int mostFileBlocks() {
+        return Math.max(V1.maxFileBlocks, V2.maxFileBlocks);
+    }
+
+    /**
+     * Reads a block pointer
+     * @return the block number, 0 or less for none
+     */
+    int getPointer(byte[] b, int offset) {
+        return (pointerSize == 2) ? SysLib.bytes2short(b, offset) : SysLib.bytes2int(b, offset);
+    }
+
+    /**
+     * Writes a block pointer
+     */
+    void putPointer(int blockId, byte[] b, int offset) {
+        if (pointerSize == 2) {
+            SysLib.short2bytes((short) blockId, b, offset);
+        } else {
+            SysLib.int2bytes(blockId, b, offset);
+        }
+    }
+
+    /**
+     * @return the block holding an inode
+     */
+    int inodeBlock(int iNumber) {
+        return 1 + iNumber / inodesPerBlock; //block 0 is the superblock
+    }
+
+    /**
+     * @return where an inode starts in its block
+     */
+    int inodeOffset(int iNumber) {
+        return (iNumber % inodesPerBlock) * inodeSize;
+    }
+}
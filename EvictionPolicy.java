@@ -0,0 +1,41 @@
+/**
+ * Picks which cache block to replace. Each Cache shard owns one policy and
+ * calls it while holding the shard lock, so implementations don't need to be
+ * thread safe. Cache blocks are named by their slot (frame) in the shard's
+ * page table.
+ *
+ * Lifecycle of a frame: insert( ) when it gets a block, hit( ) on every access,
+ * then either victim( ) picks it (and forgets it) or remove( ) drops it when
+ * the cache invalidates it.
+ */
+interface EvictionPolicy {
+    /**
+     * Tells the policy which frames it may not evict right now (loading, ...)
+     */
+    interface FrameFilter {
+        boolean evictable(int frame);
+    }
+
+    /**
+     * A resident frame was read or written
+     */
+    void hit(int frame);
+
+    /**
+     * A frame now holds blockId
+     */
+    void insert(int frame, int blockId);
+
+    /**
+     * A resident frame was invalidated
+     */
+    void remove(int frame);
+
+    /**
+     * Chooses a resident frame to replace and stops tracking it
+     * @param blockId the block that will be brought in
+     * @param filter frames that can be evicted
+     * @return the victim frame, -1 if no resident frame is evictable
+     */
+    int victim(int blockId, FrameFilter filter);
+}
@@ -0,0 +1,188 @@
+/**
+ * Checks the block accounting of fallocate, delete and delayed allocation
+ * through statfs, run from the ThreadOS loader after Test5 (it formats the
+ * disk again):
+ *   l FallocTest           booted with the default allocation
+ *   l FallocTest delalloc  booted with delalloc=on
+ *
+ * Nothing is synced between the steps, so the directory keeps the blocks it
+ * had after the format and every change in the free block count comes from
+ * the file being tested.
+ */
+class FallocTest extends Thread {
+  final static int FILES = 16;
+  final boolean delalloc;
+  final int[] info = new int[4];
+  final byte[] buf6656 = new byte[512 * 13]; // 13 blocks, past the 11 direct ones
+  int freeBlocks;                          // free blocks after the format
+  int freeInodes;                          // free inodes after the format
+  int fd;
+  int size;
+
+  public FallocTest( String args[] ) {
+    delalloc = args.length > 0 && args[0].equals( "delalloc" );
+  }
+
+  public FallocTest( ) {
+    delalloc = false;
+  }
+
+  public void run( ) {
+    if ( test1( ) ) // format, statfs
+      SysLib.cout("Correct behavior of statfs......................2\n");
+    if ( test2( ) ) // fallocate 13 blocks of "reserved"
+      SysLib.cout("Correct behavior of fallocate...................2\n");
+    if ( test3( ) ) // write and read buf[512 * 13] in the reserved blocks
+      SysLib.cout("Correct behavior of writing reserved blocks.....2\n");
+    if ( test4( ) ) // delete "reserved"
+      SysLib.cout("Correct behavior of deleting a reserved file....2\n");
+    if ( test5( ) ) // write buf[512 * 13] to "delayed", delete it
+      SysLib.cout("Correct behavior of deleting before a sync......2\n");
+
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: format( " + FILES + " ), statfs( info )....." );
+    SysLib.format( FILES );
+    if ( SysLib.statfs( info ) != 4 ) {
+      SysLib.cout( "statfs filled in fewer than 4 values (wrong)\n" );
+      return false;
+    }
+    freeBlocks = info[1];
+    freeInodes = info[3];
+    if ( info[0] != 1000 ) {
+      SysLib.cout( "totalBlocks = " + info[0] + " (wrong)\n" );
+      return false;
+    }
+    if ( info[2] != FILES ) {
+      SysLib.cout( "totalInodes = " + info[2] + " (wrong)\n" );
+      return false;
+    }
+    if ( freeInodes != FILES - 1 ) { // the directory has one
+      SysLib.cout( "freeInodes = " + freeInodes + " (wrong)\n" );
+      return false;
+    }
+    if ( freeBlocks <= 0 || freeBlocks >= 1000 ) {
+      SysLib.cout( "freeBlocks = " + freeBlocks + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: fallocate( fd, 512 * 13 )..........." );
+    fd = SysLib.open( "reserved", "w" );
+    if ( fd == -1 ) {
+      SysLib.cout( "fd = " + fd + " (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.fallocate( fd, 512 * 13 ) != 0 ) {
+      SysLib.cout( "fallocate failed (wrong)\n" );
+      return false;
+    }
+    SysLib.statfs( info );
+    if ( freeBlocks - info[1] != 14 ) { // 13 and the indirect block
+      SysLib.cout( "fallocate took " + ( freeBlocks - info[1] ) +
+                   " blocks (wrong)\n" );
+      return false;
+    }
+    if ( freeInodes - info[3] != 1 ) {
+      SysLib.cout( "open took " + ( freeInodes - info[3] ) +
+                   " inodes (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.fsize( fd ) != 0 ) {
+      SysLib.cout( "fsize = " + SysLib.fsize( fd ) + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: write and read buf[512 * 13]........" );
+    for ( int i = 0; i < buf6656.length; i++ )
+      buf6656[i] = ( byte )( i / 512 + 1 );
+    size = SysLib.write( fd, buf6656 );
+    SysLib.close( fd );
+    if ( size != buf6656.length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.statfs( info );
+    if ( freeBlocks - info[1] != 14 ) {
+      SysLib.cout( "the file has " + ( freeBlocks - info[1] ) +
+                   " blocks after the write (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[512 * 13];
+    fd = SysLib.open( "reserved", "r" );
+    size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != tmpBuf.length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < tmpBuf.length; i++ )
+      if ( tmpBuf[i] != buf6656[i] ) {
+        SysLib.cout( "tmpBuf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: delete( \"reserved\" )..............." );
+    if ( SysLib.delete( "reserved" ) != 0 ) {
+      SysLib.cout( "delete failed (wrong)\n" );
+      return false;
+    }
+    SysLib.statfs( info );
+    if ( info[1] != freeBlocks ) {
+      SysLib.cout( ( freeBlocks - info[1] ) + " blocks not given back (wrong)\n" );
+      return false;
+    }
+    if ( info[3] != freeInodes ) {
+      SysLib.cout( "freeInodes = " + info[3] + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: write \"delayed\", delete it........." );
+    fd = SysLib.open( "delayed", "w" );
+    size = SysLib.write( fd, buf6656 );
+    SysLib.close( fd );
+    if ( size != buf6656.length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.statfs( info );
+    // with delayed allocation the blocks wait for a sync in memory
+    int taken = delalloc ? 0 : 14;
+    if ( freeBlocks - info[1] != taken ) {
+      SysLib.cout( "the write took " + ( freeBlocks - info[1] ) +
+                   " blocks (wrong)\n" );
+      return false;
+    }
+    SysLib.delete( "delayed" );
+    SysLib.statfs( info );
+    if ( info[1] != freeBlocks ) {
+      SysLib.cout( ( freeBlocks - info[1] ) + " blocks not given back (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,254 @@
+import java.util.Arrays;
+
+/**
+ * The block pointers of a file past its direct ones: the indirect block and,
+ * on a disk whose inodes have one (see DiskFormat), the double indirect block
+ * and the indirect blocks it points to, one per group of indirectPointers
+ * file blocks. Each pointer block is read from the device the first time it's
+ * needed and kept for as long as the FileIndex is, usually one read, write or
+ * mapping. Changes are made here and in the inode, and write( ) puts the
+ * pointer blocks that changed back on the device; the caller writes the inode.
+ *
+ * Not synchronized, the caller holds the file's entry.
+ */
+class FileIndex {
+    private final Inode node;
+    private final BlockDevice device;
+    private final DiskFormat format;
+    private final int directs;     //direct pointers in an inode
+    private final int perBlock;    //pointers in an indirect block
+    private final int singles;     //file blocks before the double indirect ones
+
+    private byte[] index;          //the indirect block, null until read
+    private boolean indexChanged;
+    private byte[] doubleIndex;    //the double indirect block, null until read
+    private boolean doubleChanged;
+    private final byte[][] groups; //the groups' indirect blocks, null until read
+    private final boolean[] groupChanged;
+
+    FileIndex(Inode node, BlockDevice device, DiskFormat format) {
+        this.node = node;
+        this.device = device;
+        this.format = format;
+        directs = node.direct.length;
+        perBlock = format.indirectPointers;
+        singles = directs + perBlock;
+        groups = new byte[format.doubleIndirect ? perBlock : 0][];
+        groupChanged = new boolean[groups.length];
+    }
+
+    /**
+     * Finds the disk block that holds a block of the file
+     * @param logical block number within the file
+     * @return the disk block number, -1 if the file has no such block
+     */
+    int blockOf(int logical) {
+        if (logical < directs) {
+            return (node.direct[logical] > 0) ? node.direct[logical] : -1;
+        }
+        byte[] pointers;
+        int slot;
+        if (logical < singles) {
+            pointers = index();
+            slot = logical - directs;
+        } else {
+            pointers = groupPointers(group(logical));
+            slot = (logical - singles) % perBlock;
+        }
+        return (pointers == null) ? -1 : pointer(pointers, slot);
+    }
+
+    /**
+     * @return the group of the double indirect block a file block is in, -1
+     * for a direct block or one the indirect block points to
+     */
+    int group(int logical) {
+        return (logical < singles) ? -1 : (logical - singles) / perBlock;
+    }
+
+    /**
+     * @return the first file block of a group of the double indirect block
+     */
+    int groupStart(int group) {
+        return singles + group * perBlock;
+    }
+
+    boolean hasIndex() {
+        return node.indirect > 0;
+    }
+
+    boolean hasDoubleIndex() {
+        return node.doubleIndirect > 0;
+    }
+
+    /**
+     * @return the indirect block of a group, -1 if the group has none
+     */
+    int groupBlock(int group) {
+        byte[] pointers = doubleIndex();
+        return (pointers == null || group >= groups.length) ? -1 : pointer(pointers, group);
+    }
+
+    /**
+     * Gives the file an indirect block, pointing nowhere yet, or with -1
+     * takes it away
+     */
+    void setIndex(int blockId) {
+        node.indirect = blockId;
+        index = (blockId > 0) ? new byte[Disk.blockSize] : null;
+        indexChanged = blockId > 0;
+    }
+
+    /**
+     * Gives the file a double indirect block, pointing nowhere yet, or with
+     * -1 takes it away
+     */
+    void setDoubleIndex(int blockId) {
+        node.doubleIndirect = blockId;
+        doubleIndex = (blockId > 0) ? new byte[Disk.blockSize] : null;
+        doubleChanged = blockId > 0;
+        Arrays.fill(groups, null);
+        Arrays.fill(groupChanged, false);
+    }
+
+    /**
+     * Gives a group of the double indirect block an indirect block, pointing
+     * nowhere yet, or with -1 takes it away. The file has a double indirect
+     * block.
+     */
+    void setGroup(int group, int blockId) {
+        format.putPointer(Math.max(blockId, 0), doubleIndex(), group * format.pointerSize);
+        doubleChanged = true;
+        groups[group] = (blockId > 0) ? new byte[Disk.blockSize] : null;
+        groupChanged[group] = blockId > 0;
+    }
+
+    /**
+     * Points a block of the file at a disk block, or with -1 at none. The
+     * pointer block it goes in exists.
+     */
+    void setBlock(int logical, int blockId) {
+        if (logical < directs) {
+            node.direct[logical] = blockId;
+        } else if (logical < singles) {
+            format.putPointer(Math.max(blockId, 0), index(), (logical - directs) * format.pointerSize);
+            indexChanged = true;
+        } else {
+            int group = group(logical);
+            format.putPointer(Math.max(blockId, 0), groupPointers(group),
+                              (logical - singles) % perBlock * format.pointerSize);
+            groupChanged[group] = true;
+        }
+    }
+
+    /**
+     * Lists every block of the file in the order they're read: the direct
+     * blocks, the indirect block and the blocks it points to, then the
+     * double indirect block and, group by group, an indirect block and the
+     * blocks it points to
+     * @return the block numbers
+     */
+    int[] blocks() {
+        int[] blocks = new int[format.maxFileBlocks + 2 + groups.length];
+        int n = 0;
+        for (int i = 0; i < directs; i++) {
+            if (node.direct[i] > 0) {
+                blocks[n++] = node.direct[i];
+            }
+        }
+        if (hasIndex()) {
+            blocks[n++] = node.indirect;
+            n = pointees(index(), blocks, n);
+        }
+        if (hasDoubleIndex()) {
+            blocks[n++] = node.doubleIndirect;
+            for (int g = 0; g < groups.length; g++) {
+                int blockId = groupBlock(g);
+                if (blockId != -1) {
+                    blocks[n++] = blockId;
+                    n = pointees(groupPointers(g), blocks, n);
+                }
+            }
+        }
+        return Arrays.copyOf(blocks, n);
+    }
+
+    /**
+     * Writes the pointer blocks that changed back to the device
+     * @return false if one couldn't be written
+     */
+    boolean write() {
+        boolean written = true;
+        if (indexChanged && hasIndex()) {
+            written &= device.write(node.indirect, index) == Kernel.OK;
+        }
+        if (doubleChanged && hasDoubleIndex()) {
+            written &= device.write(node.doubleIndirect, doubleIndex) == Kernel.OK;
+        }
+        for (int g = 0; g < groups.length; g++) {
+            if (groupChanged[g] && groupBlock(g) != -1) {
+                written &= device.write(groupBlock(g), groups[g]) == Kernel.OK;
+            }
+        }
+        indexChanged = false;
+        doubleChanged = false;
+        Arrays.fill(groupChanged, false);
+        return written;
+    }
+
+    private byte[] index() {
+        if (index == null) {
+            index = read(node.indirect);
+        }
+        return index;
+    }
+
+    private byte[] doubleIndex() {
+        if (doubleIndex == null) {
+            doubleIndex = read(node.doubleIndirect);
+        }
+        return doubleIndex;
+    }
+
+    private byte[] groupPointers(int group) {
+        if (group >= groups.length) {
+            return null; //past the largest file
+        }
+        if (groups[group] == null) {
+            groups[group] = read(groupBlock(group));
+        }
+        return groups[group];
+    }
+
+    //reads a pointer block, null if there is none
+    private byte[] read(int blockId) {
+        if (blockId <= 0) {
+            return null;
+        }
+        byte[] block = new byte[Disk.blockSize];
+        if (device.read(blockId, block) != Kernel.OK) {
+            SysLib.cerr("Could not read indirect block " + blockId);
+            return null;
+        }
+        return block;
+    }
+
+    private int pointer(byte[] pointers, int slot) {
+        int blockId = format.getPointer(pointers, slot * format.pointerSize);
+        return (blockId > 0) ? blockId : -1;
+    }
+
+    //adds the blocks a pointer block points to
+    private int pointees(byte[] pointers, int[] blocks, int n) {
+        if (pointers == null) {
+            return n;
+        }
+        for (int slot = 0; slot < perBlock; slot++) {
+            int blockId = pointer(pointers, slot);
+            if (blockId != -1) {
+                blocks[n++] = blockId;
+            }
+        }
+        return n;
+    }
+}
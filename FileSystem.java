@@ -11,7 +11,30 @@ public class FileSystem {
     private Superblock superblock;
     private Directory directory;
     private FileTable filetable;
-    public blockCounter counter;
+    private BlockAllocator allocator; //hands out and takes back the data blocks
+    private BlockDevice device; //every block of the file system is read and written here
+    private DiskFormat format; //the disk's format version: pointer width, file size limit
+    private boolean extents = true; //allocate extents, see mapBlocks
+    private InodeCache inodes; //the one in-memory copy of each inode in use
+    private int[] pinnedMetadata = new int[0]; //the blocks pinMetadata( ) could pin
+    private boolean delayedAllocation = false; //see setDelayedAllocation
+    //blocks written with delayed allocation that have no disk block yet, its
+    //lock is held while a flush gives them one
+    private final DelayedBlocks delayed;
+    private int flushes = 0; //flushDelayed( ) runs that mapped blocks, guarded by delayed
+
+    //blocks an append takes beyond what it writes, see mapBlocks
+    private final static int MAX_PREALLOC = 16;
+    //stand for the pointer blocks in mapBlocks' list of file blocks: the
+    //indirect block, the double indirect block and, as GROUP - g, the
+    //indirect block of group g of the double indirect block
+    private final static int INDEX = -1;
+    private final static int DOUBLE_INDEX = -2;
+    private final static int GROUP = -3;
+    //blocks delayed allocation holds before a write flushes them
+    private final static int MAX_DELAYED = 64;
+    //inodes kept in memory when no file table entry uses them
+    private final static int CACHED_INODES = 256;
 
     
     /**
@@ -19,16 +42,31 @@ public class FileSystem {
      * @param diskBlocks 
      */
     public FileSystem (int diskBlocks) {
-        //Init block counter stuff for Inode
-        counter = blockCounter.getInstance(diskBlocks);
+        this(diskBlocks, new RawDevice());
+    }
+    
+    /**
+     * Mounts the file system on a block device, e.g. a CachedDevice so inode,
+     * indirect and data blocks are served from memory when they're cached.
+     * @param diskBlocks 
+     * @param device where the file system's blocks are read and written
+     */
+    public FileSystem (int diskBlocks, BlockDevice device) {
+        this.device = device;
+        delayed = new DelayedBlocks(Disk.blockSize, MAX_DELAYED, DiskFormat.mostFileBlocks());
         //create superblock and format disk with 64 inodes in default
-        superblock = new Superblock(diskBlocks);
+        superblock = new Superblock(diskBlocks, device);
+        //the superblock keeps the free block bitmap, allocate from it
+        allocator = superblock.getAllocator();
+        format = superblock.getFormat();
+        pinMetadata();
         
         //create directory, and register "/" in directory entry 0
         directory = new Directory(superblock.totalInodes);
         
         //file table is created, and store directory in the file table
-        filetable = new FileTable(directory);
+        inodes = new InodeCache(superblock.totalInodes, CACHED_INODES, device, format);
+        filetable = new FileTable(directory, inodes);
         
         //directory reconstruction
         //reads the "/" file from disk
@@ -63,10 +101,41 @@ public class FileSystem {
         //close root directory
         close(openRoot);
         
-        //sync superblock
+        //files written with delayed allocation (the directory too) get their
+        //disk blocks now
+        boolean flushed = flushDelayed();
+        if (!flushed) {
+            SysLib.cerr("Not enough free blocks to sync every file");
+        }
+        
+        //the inodes changed since their last write, one write per inode block
+        inodes.sync();
+        
+        //sync superblock, with the current free inode count
+        superblock.freeInodes = directory.freeInodes();
         superblock.sync();
+        
+        //and make the writes above (held back by a cached device) reach the disk
+        device.sync();
+        
+        //with nothing open and nothing held back, everything is on the disk
+        //now: the next mount can skip the scan. Under the file table's lock,
+        //so an open can't slip in between the check and the marker (see open( ))
+        synchronized (filetable) {
+            if (flushed && filetable.fempty()) {
+                superblock.markClean();
+            }
+        }
     }
-    
+
+    /**
+     * Writes the inodes changed since their last write, for the InodeFlusher
+     * @return the number of inode blocks written
+     */
+    int syncInodes() {
+        return inodes.sync();
+    }
+
     /**
      * Below is a format() method that is used to format the disk. How this 
      * method works is that it erases all the contents of the disk and recreates
@@ -81,13 +150,23 @@ public class FileSystem {
     boolean format(int files) {
         //uses the format method in superblock and passes through the number of 
         //files from parameter
+        unpinMetadata();
+        synchronized (delayed) {
+            delayed.clear();
+        }
         superblock.format(files);
+        format = superblock.getFormat();
+        pinMetadata();
         
         //creates a new directory which will set "/" in directory as entry 0
         directory = new Directory(superblock.totalInodes);
         
         //creates a new file table and puts the directory in the file table
-        filetable = new FileTable(directory);
+        inodes = new InodeCache(superblock.totalInodes, CACHED_INODES, device, format);
+        filetable = new FileTable(directory, inodes);
+        
+        //the new superblock and inodes go to the disk right away
+        device.sync();
         
         //returns true once done
         return true; 
@@ -114,18 +193,33 @@ public class FileSystem {
      */
     FileTableEntry open(String filename, String mode) {
         //creates a new FileTableEntry object that holds the file name and mode 
-        //parameters, allocates the new file being passed throughin
-        FileTableEntry newTableEntry = filetable.falloc(filename, mode);
+        //parameters, allocates the new file being passed throughin. The marker
+        //comes off first (the inode is about to change on the disk), under the
+        //file table's lock like sync( )'s check, so the disk can't be marked
+        //clean in between
+        FileTableEntry newTableEntry;
+        synchronized (filetable) {
+            superblock.markDirty();
+            newTableEntry = filetable.falloc(filename, mode);
+        }
+        if (newTableEntry == null) {
+            return null;
+        }
         
-        if (mode == "w"){ //checks if it is writing mode
-            //deletes all blocks first if writing mode
-            if (deallocAllBlocks(newTableEntry) == false){
-                return null;
+        //a flush of the file's delayed blocks doesn't cross the deallocation
+        synchronized (delayed) {
+            if (mode == "w"){ //checks if it is writing mode
+                //deletes all blocks first if writing mode
+                if (deallocAllBlocks(newTableEntry) == false){
+                    filetable.ffree(newTableEntry);
+                    return null;
+                }
+                
+                //deletes all blocks first if writing mode
+                //deallocAllBlocks(newTableEntry); 
             }
-            
-            //deletes all blocks first if writing mode
-            //deallocAllBlocks(newTableEntry); 
         }
+        pinIndirect(newTableEntry);
         return newTableEntry; //returns new filetableentry
     }
     
@@ -140,9 +234,16 @@ public class FileSystem {
      */
     boolean close(FileTableEntry ftEnt) {
         synchronized (ftEnt){
-        //when closing a file, we need to.. close the iNode? <-- nope, since we're not closing the file itself, just the FTE
-        ftEnt.inode.count--; //when closing FTE, reduce it's inode count
+        ftEnt.count--; //this thread is done with the FTE
         if (ftEnt.count == 0){
+            trimPrealloc(ftEnt);
+            unpinIndirect(ftEnt);
+            if (delayedAllocation && !ftEnt.mode.equals("r")) {
+                //the length, which writes leave to close( )
+                inodes.markDirty(ftEnt.iNumber);
+            }
+            //when closing a file, we need to.. close the iNode? <-- nope, since we're not closing the file itself, just the FTE
+            //ffree reduces the inode's count, the inode is shared by every entry of the file
             return filetable.ffree(ftEnt);
         }
         //if ftEnt.count isn't 0, then it's in use still... then what?
@@ -168,80 +269,63 @@ public class FileSystem {
     /**
      * Below is the read() method that is used to read the block and calculate 
      * the buffer based on data size. 
+     * Reads from the seek pointer up to the end of the file, a block at a
+     * time, and moves the seek pointer past what was read.
      * @param ftEnt
      * @param buffer read block into the buffer
-     * @return -1 on error
+     * @return -1 on error, else the number of bytes read (0 at the end of the file)
      * 
      * @author Steffan Achtmann (modified by Dwina Solihin)
      * 
      */
     int read(FileTableEntry ftEnt, byte[] buffer) {
-        //checks if mode is not read
-        if ((ftEnt.mode.equals("w")) || (ftEnt.mode.equals("a")) || ftEnt.mode.equals("w+")){
+        //checks if mode is not read ("w+" reads and writes)
+        if ((ftEnt.mode.equals("w")) || (ftEnt.mode.equals("a"))){
             return -1;
         }
         
-        int bytesRead = 0;
-        int fileSize = ftEnt.inode.length;
-        int curDirect = 0;
-        int curIndirect = 0;
-        int curBufferPtr = 0;
-        boolean doneReading = false;
-        
         synchronized(ftEnt){
-        while (!doneReading) {
-            if (bytesRead >= buffer.length) {
-                doneReading = true;
-                break;
-            }
-            if (curDirect <= 11) {
-                //read from direct pointers
-                byte[] readBuf = new byte[Disk.blockSize];
-                if (SysLib.rawread(ftEnt.inode.direct[curDirect], readBuf) != 0) {
-                        SysLib.cerr("Could not read within the read function.");
-                        return -1;
-                }
-                
-                for (int i = 0; i < Disk.blockSize; i++) {
-                    if (bytesRead >= buffer.length || bytesRead >= fileSize) {
-                        doneReading = true;
-                        break;
+            Inode node = ftEnt.inode;
+            int bytesToRead = Math.min(buffer.length, node.length - ftEnt.seekPtr);
+            if (bytesToRead <= 0) {
+                return 0; //at the end of the file
+            }
+            FileIndex index = readIndex(node);
+            int seen = -1; //flushes when index was last read under the lock
+            byte[] readBuf = new byte[Disk.blockSize];
+            int bytesRead = 0;
+            while (bytesRead < bytesToRead) {
+                int position = ftEnt.seekPtr + bytesRead;
+                int offset = position % Disk.blockSize;
+                int n = Math.min(Disk.blockSize - offset, bytesToRead - bytesRead);
+                int logical = position / Disk.blockSize;
+                int blockId = index.blockOf(logical);
+                boolean held = false;
+                if (blockId == -1 && delayedAllocation) {
+                    synchronized (delayed) {
+                        //written but not flushed yet, or flushed since index was read
+                        held = delayed.read(ftEnt.iNumber, logical, readBuf);
+                        if (!held && seen != flushes) {
+                            index = readIndex(node);
+                            seen = flushes;
+                            blockId = index.blockOf(logical);
+                        }
                     }
-                    buffer[curBufferPtr] = readBuf[i];
-                    curBufferPtr++;
-                    bytesRead++;
-                }
-                curDirect++;
-            }
-            else {
-                //read from indirect pointers
-                byte[] readBuf = new byte[Disk.blockSize];
-                //read the indirect block
-                if (SysLib.rawread(ftEnt.inode.indirect, readBuf) != 0) {
-                        SysLib.cerr("Could not read within the read function.");
-                        return -1;
                 }
-                //grab the right block id
-                short correctLocationToReadIndirectBlockLocation = SysLib.bytes2short(readBuf, curIndirect*2);
-                //Now read from the block id
-                if (SysLib.rawread(correctLocationToReadIndirectBlockLocation, readBuf) != 0) {
-                        SysLib.cerr("Could not read within the read function.");
-                        return -1;
-                }
-                
-                for (int i = 0; i < Disk.blockSize; i++) {
-                    if (bytesRead >= buffer.length || bytesRead >= fileSize) {
-                        doneReading = true;
-                        break;
-                    }
-                    buffer[curBufferPtr] = readBuf[i];
-                    curBufferPtr++;
-                    bytesRead++;
+                if (held) {
+                    //readBuf has the block
+                } else if (blockId == -1) {
+                    Arrays.fill(readBuf, (byte) 0); //never written
+                } else if (device.read(blockId, readBuf) != 0) {
+                    SysLib.cerr("Could not read within the read function.");
+                    return -1;
                 }
-                curIndirect++;
+                prefetchNext(node, index, logical, blockId);
+                System.arraycopy(readBuf, offset, buffer, bytesRead, n);
+                bytesRead += n;
             }
-        }
-             return buffer.length;
+            ftEnt.seekPtr += bytesRead;
+            return bytesRead;
         }
     }
     
@@ -249,270 +333,625 @@ public class FileSystem {
      * Below is the write() method that is used to write the contents of buffer 
      * (byte[] array passed through) to the file at the indicated position of 
      * the seek pointer. 
+     * The blocks the write needs are given to the file first, in one go (see
+     * mapBlocks), so a file written sequentially ends up in one extent of
+     * consecutive disk blocks. With delayed allocation the blocks that don't
+     * have a disk block are held in memory instead (see flushDelayed), and
+     * the inode is left to close( ) or the flush.
      * @param ftEnt
      * @param buffer
-     * @return -1 on error, size of file (in bytes) on success
+     * @return -1 on error, number of bytes written on success
      * 
      * @author Steffan Achtmann (modified by Dwina Solihin
      */
     int write(FileTableEntry ftEnt, byte[] buffer) {
-        //Write by following the iNode links
-        //seek ptr is the # of bytes into file - find that first before writing
-        //the length bit in inode doesn't matter cuz seek ptr is all that matters.
-        //11*512 is max 
         if ((!ftEnt.mode.equals("w")) && (!ftEnt.mode.equals("a")) && (!ftEnt.mode.equals("w+"))) {
             //not in write mode, reject
             return -1;
         }
-        if (ftEnt.mode.equals("a")) {
-            //it's in append mode, so ensure that seek pointer is equal to length
-            ftEnt.seekPtr = ftEnt.inode.length;
-        }
-        if (ftEnt.seekPtr < (11*Disk.blockSize) ) {
-            //seek ptr is in a direct block
-            short rightDirect = (short) (ftEnt.seekPtr/Disk.blockSize);  //currently this points to the actual block
-            
-            //the byte within the block to start writing at
-            int correctStartingByte = ftEnt.seekPtr-(Disk.blockSize*rightDirect);
-            //Now write into the block
+        synchronized(ftEnt){
+            Inode node = ftEnt.inode;
+            if (ftEnt.mode.equals("a")) {
+                //it's in append mode, so ensure that seek pointer is equal to length
+                ftEnt.seekPtr = node.length;
+            }
+            if (buffer.length == 0) {
+                return 0;
+            }
+            int end = ftEnt.seekPtr + buffer.length;
+            if (end > format.maxFileBlocks * Disk.blockSize) {
+                SysLib.cerr("The write goes past the largest possible file");
+                return -1;
+            }
+            if (!delayedAllocation
+                    && !mapBlocks(ftEnt, ftEnt.seekPtr / Disk.blockSize, (end - 1) / Disk.blockSize)) {
+                SysLib.cerr("Not enough free blocks for the write");
+                return -1;
+            }
+            FileIndex index = readIndex(node);
+            int seen = -1; //flushes when index was last read under the lock
+            byte[] writeBuf = new byte[Disk.blockSize];
             int bytesWritten = 0;
-            short curDirect = rightDirect;  //on first run, this points to the actual block
-            short curIndirect = 0; //there's a max of 256 indirect pointers, this is sued to keep track of which you're on
-            short blockLocationFromIndirect = 0;
-           
-            while(curIndirect < 256 && bytesWritten < buffer.length) { //keep writing to the next blocks while there's stuff to write & space
-                byte[] readBuf = new byte[Disk.blockSize];
-                //read from direct if still @ direct pointers
-                if (curDirect <= 11) {
-                    if (SysLib.rawread(ftEnt.inode.direct[curDirect], readBuf) != 0) {
-                        SysLib.cerr("Could not read within the write function.");
-                        return -1;
-                    }
-                }
-                //else read from indirect
-                else {
-                    //get the indirect block location
-                    //curIndirect tells you where within the indirect block to check
-                    
-                    if (SysLib.rawread(ftEnt.inode.indirect, readBuf) != 0) {
-                        SysLib.cerr("Could not read indirect's block + " + ftEnt.inode.indirect + "within the write function.");
-                        return -1;
-                    }
-                    
-                    //Now you have the indirect block, but you need to look within it to find the actual block to write into
-                    blockLocationFromIndirect = readBuf[(curIndirect*2)]; //double the curIndirect to get the start of it's short byte within the block
-                    if (blockLocationFromIndirect == 0) {
-                        //you need to assign a real block to the inode indirect's current redirection
-                        short free = counter.getFreeBlock();
-                        //Write the free block id over the previous 0 block
-                        SysLib.short2bytes(free, readBuf, (curIndirect*2));
-                        //make the free block no longer free
-                        counter.flipBlockState(free);
-                        //make the block location equal to whatever free block you found
-                        //write back the change to the indirect block
-                        if(SysLib.rawwrite(ftEnt.inode.indirect, readBuf) !=0) {
-                            SysLib.cerr("Raw write failed when writing back to indirect after change");
-                            SysLib.exit();
+            while (bytesWritten < buffer.length) {
+                int position = ftEnt.seekPtr + bytesWritten;
+                int offset = position % Disk.blockSize;
+                int n = Math.min(Disk.blockSize - offset, buffer.length - bytesWritten);
+                int logical = position / Disk.blockSize;
+                int blockId = index.blockOf(logical);
+                if (blockId == -1 && delayedAllocation) {
+                    synchronized (delayed) {
+                        if (delayed.size() == delayed.capacity()) {
+                            //no room to hold another block: this file's go to the disk
+                            //first, then everyone's
+                            if (!flushDelayed(ftEnt.iNumber)
+                                    || (delayed.size() == delayed.capacity() && !flushDelayed())) {
+                                SysLib.cerr("Not enough free blocks for the write");
+                                return -1;
+                            }
                         }
-                        //make the block location equal to whatever free block you found
-                        blockLocationFromIndirect = free;
-                    }
-                    //Now read the actual block with data into readBuf
-                    if (SysLib.rawread(blockLocationFromIndirect, readBuf) != 0) {
-                        SysLib.cerr("Could not read indirect block + " + blockLocationFromIndirect + "within the write function.");
-                        SysLib.exit();
-                    }
-                }
-                for (int i = correctStartingByte; i < Disk.blockSize; i++) {
-                    if (bytesWritten >= buffer.length) {
-                        //completed write, exit the for loop
-                        break;
-                    }
-                    readBuf[i] = buffer[bytesWritten];
-                    bytesWritten++;
-                }
-                
-                //Now actually write the data back to the file
-                
-                
-                if (curDirect < 11) {
-                    //Write back to the curDirect
-                    if (SysLib.rawwrite(ftEnt.inode.direct[curDirect], readBuf) != 0 ) {
-                        SysLib.cerr("Hit an error trying to write back to direct block in write function");
-                        SysLib.exit();
-                    }
-                    
-                    curDirect++;
-                    if (ftEnt.inode.direct[curDirect] == -1) {
-                        //Allocate a new block to the inode
-                        short free = counter.getFreeBlock();
-                        ftEnt.inode.direct[curDirect] = free;
-                        counter.flipBlockState(free);
-                    }
-                }
-                else {
-                    if (curDirect == 11) {
-                        //Write back to the curDirect
-                        if (SysLib.rawwrite(ftEnt.inode.direct[curDirect], readBuf) != 0 ) {
-                            SysLib.cerr("Hit an error trying to write back to direct block in write function");
-                            SysLib.exit();
+                        if (seen != flushes) {
+                            index = readIndex(node);
+                            seen = flushes;
+                            blockId = index.blockOf(logical);
                         }
-                        curDirect++;
-                        //Assign an indirect block for the inode if it doesn't exist
-                        if (ftEnt.inode.indirect == -1) {
-                            short free = counter.getFreeBlock();
-                            ftEnt.inode.indirect = free;
-                            counter.flipBlockState(free);
+                        if (blockId == -1) {
+                            boolean held = delayed.read(ftEnt.iNumber, logical, writeBuf);
+                            //every held block needs a disk block at the flush, and
+                            //so does every pointer block a held file doesn't have yet
+                            if (!held && allocator.freeBlocks() < flushBlocks(ftEnt.iNumber, logical)) {
+                                SysLib.cerr("Not enough free blocks for the write");
+                                return -1;
+                            }
+                            if (!held && n < Disk.blockSize) {
+                                Arrays.fill(writeBuf, (byte) 0);
+                            }
+                            System.arraycopy(buffer, bytesWritten, writeBuf, offset, n);
+                            delayed.write(ftEnt.iNumber, logical, writeBuf);
+                            bytesWritten += n;
+                            continue;
                         }
                     }
-                    else {
-                        //Write back to the current indirect
-                        if (SysLib.rawwrite(blockLocationFromIndirect, readBuf) != 0 ) {
-                            SysLib.cerr("Hit an error trying to write back to direct block in write function");
-                            SysLib.exit();
+                }
+                if (n < Disk.blockSize) {
+                    //only part of the block changes, keep the rest of the file's data
+                    if (position - offset < node.length) {
+                        if (device.read(blockId, writeBuf) != 0) {
+                            SysLib.cerr("Could not read within the write function.");
+                            return -1;
                         }
-                        curIndirect++;
-                        //Don't worry about direct anymore, worry about indirects
+                    } else {
+                        Arrays.fill(writeBuf, (byte) 0);
                     }
                 }
-                //after the first block, correctStartingBlock doesn't matter, so set to 0 for the for loop
-                correctStartingByte = 0;
+                System.arraycopy(buffer, bytesWritten, writeBuf, offset, n);
+                if (device.write(blockId, writeBuf) != 0) {
+                    SysLib.cerr("Hit an error trying to write back to block " + blockId + " in write function");
+                    return -1;
+                }
+                bytesWritten += n;
+            }
+            ftEnt.seekPtr = end;
+            if (end > node.length) {
+                node.length = end;
             }
+            if (!delayedAllocation) {
+                inodes.markDirty(ftEnt.iNumber);
+            }
+            return bytesWritten;
         }
-        else {
-            //it's in an indirect pointer
-            short rightIndirect = (short) ((ftEnt.seekPtr / Disk.blockSize) - 11);
-            short curIndirect = rightIndirect;
-            int bytesWritten = 0;
-            int correctStartingByte = ftEnt.seekPtr-(Disk.blockSize*rightIndirect);
-            while(curIndirect < 256 && bytesWritten < buffer.length) { //keep writing to the next blocks while there's stuff to write & space
-                byte[] readBuf = new byte[Disk.blockSize];
-            
-                if (SysLib.rawread(ftEnt.inode.indirect, readBuf) != 0) {
-                    SysLib.cerr("Could not read indirect's block + " + ftEnt.inode.indirect + "within the write function.");
-                    return -1;
+    }
+    
+    /**
+     * Asks the device for the file's next block once this one is read, when
+     * the file has it and it isn't the disk block right after this one (the
+     * cache's readahead already follows those)
+     * @param logical the block being read
+     * @param blockId its disk block, -1 if it has none
+     */
+    private void prefetchNext(Inode node, FileIndex index, int logical, int blockId) {
+        if ((long) (logical + 1) * Disk.blockSize >= node.length) {
+            return; //the file ends in this block
+        }
+        int next = index.blockOf(logical + 1);
+        if (next != -1 && (blockId == -1 || next != blockId + 1)) {
+            device.prefetch(next);
+        }
+    }
+    
+    /**
+     * Starts reading the pointer blocks of an inode
+     * @return the inode's index (see FileIndex), it reads the blocks as
+     * they're needed
+     */
+    private FileIndex readIndex(Inode node) {
+        return new FileIndex(node, device, format);
+    }
+    
+    /**
+     * Gives the blocks first to last of a file a disk block each, if they
+     * don't have one yet. The missing ones are taken as one extent (see
+     * BlockAllocator.allocExtent) that starts right after the disk block of
+     * the file block before them, and are laid out in the order they're read:
+     * the direct blocks, then the indirect block, then the blocks it points
+     * to, then the double indirect block and, group by group, an indirect
+     * block and the blocks it points to. A write at the end of a file that isn't empty, or of any file opened
+     * with "a", is taken as an append: if it needs new blocks, it takes
+     * MAX_PREALLOC more, so the next appends continue the extent. close( )
+     * gives back what's left of those past the end of the file.
+     * The caller writes the inode to the disk.
+     * @param ftEnt the file
+     * @param first first block of the file the write touches
+     * @param last last block of the file the write touches
+     * @return false if the disk doesn't have enough free blocks
+     */
+    private boolean mapBlocks(FileTableEntry ftEnt, int first, int last) {
+        Inode node = ftEnt.inode;
+        int extra = 0;
+        if (extents && ftEnt.seekPtr == node.length && (node.length > 0 || ftEnt.mode.equals("a"))
+                && readIndex(node).blockOf(last) == -1) { //past the last preallocation
+            extra = Math.min(MAX_PREALLOC, format.maxFileBlocks - 1 - last);
+        }
+        return mapBlocks(ftEnt, first, last, extra, 0)
+                || (extra > 0 && mapBlocks(ftEnt, first, last, 0, 0));
+    }
+    
+    /**
+     * @param extra blocks past last to map as well
+     * @param reserve free blocks to leave for others, e.g. what delayed
+     * allocation holds (see flushBlocks)
+     */
+    private boolean mapBlocks(FileTableEntry ftEnt, int first, int last, int extra, int reserve) {
+        Inode node = ftEnt.inode;
+        int directs = node.direct.length;
+        FileIndex index = readIndex(node);
+        //the file blocks that need a disk block, with the pointer blocks they
+        //need before them
+        int span = last + extra - first + 1;
+        int[] wanted = new int[span + 3 + span / format.indirectPointers];
+        int n = 0;
+        boolean needIndex = !index.hasIndex();
+        boolean needDouble = !index.hasDoubleIndex();
+        int lastGroup = -1;
+        for (int logical = first; logical <= last + extra; logical++) {
+            int group = index.group(logical);
+            if (group == -1 && logical >= directs && needIndex) {
+                wanted[n++] = INDEX;
+                needIndex = false;
+            }
+            if (group != -1 && needDouble) {
+                wanted[n++] = DOUBLE_INDEX;
+                needDouble = false;
+            }
+            if (group != lastGroup) {
+                lastGroup = group;
+                if (index.groupBlock(group) == -1) {
+                    wanted[n++] = GROUP - group;
                 }
-
-                //Now you have the indirect block, but you need to look within it to find the actual block to write into
-                short blockLocationFromIndirect = readBuf[(curIndirect*2)]; //double the curIndirect to get the start of it's short byte within the block
-                if (blockLocationFromIndirect == 0) {
-                    //you need to assign a real block to the inode indirect's current redirection
-                    short free = counter.getFreeBlock();
-                    //Write the free block id over the previous 0 block
-                    SysLib.short2bytes(free, readBuf, (curIndirect*2));
-                    //make the free block no longer free
-                    counter.flipBlockState(free);
-                    //make the block location equal to whatever free block you found
-                    //write back the change to the indirect block
-                    if(SysLib.rawwrite(ftEnt.inode.indirect, readBuf) !=0) {
-                        SysLib.cerr("Raw write failed when writing back to indirect after change");
-                        SysLib.exit();
+            }
+            if (index.blockOf(logical) == -1) {
+                wanted[n++] = logical;
+            }
+        }
+        if (n == 0) {
+            return true;
+        }
+        if (allocator.freeBlocks() - reserve < n) {
+            return false;
+        }
+        
+        int[] blocks = new int[n];
+        int taken = 0;
+        if (extents) {
+            //goal: the disk block after the one holding the file block before these
+            int before;
+            if (wanted[0] == INDEX) {
+                before = directs - 1;
+            } else if (wanted[0] == DOUBLE_INDEX) {
+                before = index.groupStart(0) - 1;
+            } else if (wanted[0] <= GROUP) {
+                before = index.groupStart(GROUP - wanted[0]) - 1;
+            } else {
+                before = wanted[0] - 1;
+            }
+            int previous = (before >= 0) ? index.blockOf(before) : -1;
+            taken = allocator.allocExtent((previous == -1) ? -1 : previous + 1, n, blocks);
+        } else {
+            while (taken < n && (blocks[taken] = allocator.alloc()) != -1) {
+                taken++;
+            }
+        }
+        if (taken < n) {
+            for (int i = 0; i < taken; i++) {
+                allocator.free(blocks[i]);
+            }
+            return false;
+        }
+        
+        for (int i = 0; i < n; i++) {
+            if (wanted[i] == INDEX) {
+                index.setIndex(blocks[i]);
+            } else if (wanted[i] == DOUBLE_INDEX) {
+                index.setDoubleIndex(blocks[i]);
+            } else if (wanted[i] <= GROUP) {
+                index.setGroup(GROUP - wanted[i], blocks[i]);
+            } else {
+                index.setBlock(wanted[i], blocks[i]);
+            }
+        }
+        if (!index.write()) {
+            SysLib.cerr("Could not write the indirect blocks of inode " + ftEnt.iNumber);
+            return false;
+        }
+        pinIndirect(ftEnt);
+        if (extra > 0) {
+            ftEnt.preallocated = true;
+        }
+        return true;
+    }
+    
+    /**
+     * Reserves the disk blocks for the first bytes bytes of a file, so the
+     * writes that fill it in later don't allocate. The missing blocks are
+     * taken in one allocator pass, as one extent when the disk has room for
+     * it (see mapBlocks), and are not zeroed: the file's length stays the
+     * same, so nothing past it can be read. The blocks stay with the file
+     * when it's closed, until it's deleted or opened with "w".
+     * @param ftEnt the file, open for writing
+     * @param bytes size to reserve blocks for
+     * @return false if the file isn't writable, the size is too large for a
+     * file or the disk doesn't have enough free blocks
+     */
+    boolean fallocate(FileTableEntry ftEnt, int bytes) {
+        if ((!ftEnt.mode.equals("w")) && (!ftEnt.mode.equals("a")) && (!ftEnt.mode.equals("w+"))) {
+            return false;
+        }
+        if (bytes <= 0 || bytes > format.maxFileBlocks * Disk.blockSize) {
+            return false;
+        }
+        int last = (bytes - 1) / Disk.blockSize;
+        synchronized(ftEnt){
+            if (delayedAllocation) {
+                //held blocks must not be written over the ones mapped below,
+                //and the other files' held blocks keep what their flush takes
+                synchronized (delayed) {
+                    if (!flushDelayed(ftEnt.iNumber) || !mapBlocks(ftEnt, 0, last, 0, flushBlocks())) {
+                        return false;
                     }
-                    //make the block location equal to whatever free block you found
-                    blockLocationFromIndirect = free;
                 }
-                //Now read the actual block with data into readBuf
-                if (SysLib.rawread(blockLocationFromIndirect, readBuf) != 0) {
-                    SysLib.cerr("Could not read indirect block + " + blockLocationFromIndirect + "within the write function.");
-                    SysLib.exit();
+            } else if (!mapBlocks(ftEnt, 0, last, 0, 0)) {
+                return false;
+            }
+            ftEnt.reserved = Math.max(ftEnt.reserved, bytes);
+            inodes.markDirty(ftEnt.iNumber);
+            return true;
+        }
+    }
+    
+    /**
+     * Gives back the blocks mapBlocks took past the end of a file for the
+     * appends that didn't come, but not the ones fallocate reserved
+     */
+    private void trimPrealloc(FileTableEntry ftEnt) {
+        if (!ftEnt.preallocated) {
+            return;
+        }
+        ftEnt.preallocated = false;
+        Inode node = ftEnt.inode;
+        int directs = node.direct.length;
+        int keep = (Math.max(node.length, ftEnt.reserved) + Disk.blockSize - 1) / Disk.blockSize;
+        FileIndex index = readIndex(node);
+        int[] freed = new int[format.maxFileBlocks + 2 + format.indirectPointers];
+        int n = 0;
+        for (int logical = keep; logical < format.maxFileBlocks; logical++) {
+            int group = index.group(logical);
+            if (group != -1 && index.groupBlock(group) == -1) {
+                logical = index.groupStart(group + 1) - 1; //nothing in this group
+                continue;
+            }
+            int blockId = index.blockOf(logical);
+            if (blockId == -1) {
+                continue;
+            }
+            freed[n++] = blockId;
+            index.setBlock(logical, -1);
+        }
+        //the pointer blocks left with nothing to point to
+        if (index.hasDoubleIndex()) {
+            for (int group = 0; index.groupStart(group) < format.maxFileBlocks; group++) {
+                int blockId = index.groupBlock(group);
+                if (blockId != -1 && keep <= index.groupStart(group)) {
+                    freed[n++] = blockId;
+                    index.setGroup(group, -1);
                 }
-                
-                
-                for (int i = correctStartingByte; i < Disk.blockSize; i++) {
-                    if (bytesWritten >= buffer.length) {
-                        //completed write, exit the for loop
-                        break;
-                    }
-                    readBuf[i] = buffer[bytesWritten];
-                    bytesWritten++;
+            }
+            if (keep <= index.groupStart(0)) {
+                freed[n++] = node.doubleIndirect;
+                index.setDoubleIndex(-1);
+            }
+        }
+        if (index.hasIndex() && keep <= directs) {
+            unpinIndirect(ftEnt);
+            freed[n++] = node.indirect;
+            index.setIndex(-1);
+        }
+        if (n == 0) {
+            return;
+        }
+        index.write();
+        inodes.markDirty(ftEnt.iNumber);
+        freeBlocks(Arrays.copyOf(freed, n));
+    }
+    
+    /**
+     * Drops blocks a file gave up from the device's memory and gives them
+     * back to the allocator, in that order so a new owner's data can't be
+     * dropped
+     */
+    private void freeBlocks(int[] blocks) {
+        device.invalidate(blocks);
+        for (int blockId : blocks) {
+            allocator.free(blockId);
+        }
+    }
+    
+    /**
+     * Counts the extents (runs of consecutive disk blocks) a file is stored
+     * in, its pointer blocks included, and reports it, e.g.
+     * "bothell: 6656 bytes, 14 blocks, 1 extent"
+     * @param filename the file
+     * @return the report, null if there's no such file
+     */
+    String fragmentation(String filename) {
+        short iNumber = directory.namei(filename);
+        if (iNumber == -1) {
+            return null;
+        }
+        Inode node = inodes.get(iNumber);
+        int[] blocks = readIndex(node).blocks();
+        int extents = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            extents += (i > 0 && blocks[i] == blocks[i - 1] + 1) ? 0 : 1;
+        }
+        inodes.put(iNumber);
+        return filename + ": " + node.length + " bytes, " + blocks.length + " blocks, " +
+               extents + (extents == 1 ? " extent" : " extents");
+    }
+    
+    /**
+     * Switches extent allocation off (blocks are then taken one at a time,
+     * wherever the allocator's next free block is) or back on
+     */
+    void setExtents(boolean on) {
+        extents = on;
+    }
+    
+    /**
+     * Switches delayed allocation on or off. With it on, a write doesn't give
+     * the file's new blocks disk blocks: it keeps their data in memory, tagged
+     * with the file and the block's number in the file, until sync( ) (or a
+     * write that finds no room left to hold another block) flushes them, see
+     * flushDelayed. By then the file has likely been written whole, so its
+     * blocks are placed as one extent, and a file deleted before that never
+     * takes a block at all. Switching it off flushes what's held.
+     */
+    void setDelayedAllocation(boolean on) {
+        synchronized (delayed) {
+            if (!on && !flushDelayed()) {
+                SysLib.cerr("Not enough free blocks to flush every file");
+            }
+            delayedAllocation = on;
+        }
+    }
+    
+    /**
+     * Flushes the blocks delayed allocation holds for every file
+     * @return false if the disk ran out of free blocks for some
+     */
+    private boolean flushDelayed() {
+        synchronized (delayed) {
+            short[] files = delayed.files();
+            boolean flushed = true;
+            for (int i = 0; i < files.length; i++) {
+                flushed &= flushDelayed(files[i]);
+            }
+            return flushed;
+        }
+    }
+    
+    /**
+     * Counts the disk blocks flushing what delayed allocation holds now would
+     * take, see below
+     */
+    private int flushBlocks() {
+        int needed = delayed.size();
+        short[] files = delayed.files();
+        for (int i = 0; i < files.length; i++) {
+            needed += missingPointerBlocks(files[i], delayed.blocks(files[i]));
+        }
+        return needed;
+    }
+    
+    /**
+     * Counts the disk blocks flushing what delayed allocation holds would
+     * take, with one more block held for a file: one for each held block,
+     * and one for each pointer block (see FileIndex) a file doesn't have yet
+     * for its held blocks
+     * @param iNumber the file about to hold another block
+     * @param logical the block within the file
+     * @return the number of blocks
+     */
+    private int flushBlocks(short iNumber, int logical) {
+        int needed = delayed.size() + 1;
+        short[] files = delayed.files();
+        boolean holding = false;
+        for (int i = 0; i < files.length; i++) {
+            int[] logicals = delayed.blocks(files[i]);
+            if (files[i] == iNumber) {
+                holding = true;
+                logicals = Arrays.copyOf(logicals, logicals.length + 1);
+                logicals[logicals.length - 1] = logical;
+            }
+            needed += missingPointerBlocks(files[i], logicals);
+        }
+        if (!holding) {
+            needed += missingPointerBlocks(iNumber, new int[] { logical });
+        }
+        return needed;
+    }
+    
+    /**
+     * @return the number of pointer blocks a file needs for some of its blocks
+     * and doesn't have yet
+     */
+    private int missingPointerBlocks(short iNumber, int[] logicals) {
+        Inode node = inodes.get(iNumber);
+        FileIndex index = readIndex(node);
+        boolean needIndex = false;
+        boolean needDouble = false;
+        boolean[] needGroup = new boolean[format.indirectPointers];
+        for (int i = 0; i < logicals.length; i++) {
+            int group = index.group(logicals[i]);
+            if (group == -1) {
+                needIndex |= logicals[i] >= node.direct.length && !index.hasIndex();
+            } else if (group < needGroup.length) {
+                needDouble |= !index.hasDoubleIndex();
+                needGroup[group] |= index.groupBlock(group) == -1;
+            }
+        }
+        inodes.put(iNumber);
+        int missing = (needIndex ? 1 : 0) + (needDouble ? 1 : 0);
+        for (int g = 0; g < needGroup.length; g++) {
+            missing += needGroup[g] ? 1 : 0;
+        }
+        return missing;
+    }
+    
+    /**
+     * Gives the blocks delayed allocation holds for a file their disk blocks,
+     * as one extent after the file's block before them when the disk has room
+     * (see mapBlocks), and writes them there. The blocks are mapped on a copy
+     * of the inode, the shared one (see InodeCache) only gets the pointers once
+     * the data is on the blocks. It goes to the disk under the file table's
+     * lock, so it doesn't cross an open or close of the file.
+     * @return false if the disk doesn't have enough free blocks, the blocks
+     * are held on then
+     */
+    private boolean flushDelayed(short iNumber) {
+        synchronized (delayed) {
+            int[] logicals = delayed.blocks(iNumber);
+            if (logicals.length == 0) {
+                return true;
+            }
+            synchronized (filetable) {
+                Inode node = inodes.get(iNumber);
+                Inode copy = new Inode(format);
+                System.arraycopy(node.direct, 0, copy.direct, 0, node.direct.length);
+                copy.indirect = node.indirect;
+                copy.doubleIndirect = node.doubleIndirect;
+                //the blocks in between that aren't held already have disk blocks
+                FileTableEntry flushing = new FileTableEntry(copy, iNumber, "w");
+                boolean mapped = mapBlocks(flushing, logicals[0], logicals[logicals.length - 1], 0, 0);
+                unpinIndirect(flushing);
+                if (!mapped) {
+                    inodes.put(iNumber);
+                    return false;
                 }
-                
-                //Finally, write back to the block
-                if (SysLib.rawwrite(blockLocationFromIndirect, readBuf) != 0 ) {
-                    SysLib.cerr("Hit an error trying to write back to direct block in write function");
-                    SysLib.exit();
+                FileIndex index = readIndex(copy);
+                byte[] data = new byte[Disk.blockSize];
+                for (int i = 0; i < logicals.length; i++) {
+                    delayed.read(iNumber, logicals[i], data);
+                    device.write(index.blockOf(logicals[i]), data);
                 }
-                curIndirect++;
-                
-                //after the first block, correctStartingBlock doesn't matter, so set to 0 for the for loop
-                correctStartingByte = 0;
+                System.arraycopy(copy.direct, 0, node.direct, 0, node.direct.length);
+                node.indirect = copy.indirect;
+                node.doubleIndirect = copy.doubleIndirect;
+                inodes.markDirty(iNumber);
+                inodes.put(iNumber);
+                for (int i = 0; i < logicals.length; i++) {
+                    delayed.remove(iNumber, logicals[i]);
+                }
+                flushes++;
+                return true;
             }
         }
-        ftEnt.inode.length = ftEnt.inode.length +  ftEnt.seekPtr - buffer.length;
-        return ftEnt.inode.length;       
     }
     
     /**
      * This method will deallocate all blocks for the inode associated
-     * with a FTE, except for the first direct block, which is wiped, but
-     * otherwise kept allocated to the inode.
+     * with a FTE and empty the file.
      * If not possible
      * @param ftEnt
-     * @return false if not all inode blocks are valid
+     * @return false if another file table entry uses the file
      * 
      * @author Steffan Achtmann (modified by Dwina Solihin)
      */
     private boolean deallocAllBlocks(FileTableEntry ftEnt) {
       Inode node = ftEnt.inode;
-      if (node.count != 0) {
-          //don't deallocate since something is using
+      if (node.count > 1) {
+          //don't deallocate since something else is using it (the count includes us)
           SysLib.cerr("A process is using the file, cannot deallocate");
           return false;
       }
-      blockCounter counter = blockCounter.getInstance();
-      //Start with the direct blocks
-      for (int i =1; i < 11; i++) {
-          //-1 means it's already not in use/invalid
-          if (node.direct[i] != -1) {
-              int id = node.direct[i];
-              node.direct[i] = -1;
-              if (clearBlock(id) == false) {
-                  return false; //hit an error
-              } //clear out the block
-              counter.flipBlockState(id); //make it free to pick up
-          } 
-      }
-      
-      int indirectid = node.indirect;
-      if (indirectid != -1) {
-          node.indirect = -1;
-          //run through all the indirects pointers and then clear the indirect block
-          byte[] block = new byte[Disk.blockSize];
-          if (SysLib.rawread(indirectid, block) !=0 ) {
-              SysLib.cerr("Could not read indirect id when deallocating blocks");
-              SysLib.exit();
-          }
-          for (int i = 0; i < Disk.blockSize/2; i +=2) {
-              short blockid = SysLib.bytes2short(block, i);
-              if (blockid == 0 || blockid == -1) {
-                  break; //finished clearing, no blocks will have these ids
-              }
-              if (clearBlock(blockid) == false) {
-                  return false;
-              }
-              counter.flipBlockState(blockid);
-          }
+      delayed.removeFile(ftEnt.iNumber);
+      int[] freed = readIndex(node).blocks();
+      unpinIndirect(ftEnt);
+      for (int i = 0; i < node.direct.length; i++) {
+          node.direct[i] = -1;
       }
-      counter.flipBlockState(indirectid);
+      node.indirect = -1;
+      node.doubleIndirect = -1;
+      node.length = 0;
+      inodes.markDirty(ftEnt.iNumber);
       
-      //and finally, clear out the block for the first direct block, even though
-      //it's still attatched to the inode
-      if (clearBlock(node.direct[0]) == false) {
-        return false; //hit an error
-      }
+      //the freed blocks leave the device's memory, the rest of it stays warm
+      freeBlocks(freed);
       return true;
     }
     
-    private boolean clearBlock(int blockid) {
-        //set the block's contents to complete 0s
-        byte[] block = new byte[Disk.blockSize];
-        byte fillItem = 0;
-        Arrays.fill(block, fillItem);
-        if (SysLib.rawwrite(blockid, block) != 0) {
-            SysLib.cerr("Could not write the block for clearing");
-            return false;
+    /**
+     * Pins the superblock, the inode blocks and the free block bitmap, which
+     * every open, close and write reads, in the device (as many as its pin
+     * quota allows, the superblock and the first inodes first). They are the
+     * blocks before the first data block, superblock.freeList.
+     */
+    private void pinMetadata() {
+        int[] pinned = new int[superblock.freeList];
+        int n = 0;
+        for (int i = 0; i < superblock.freeList; i++) {
+            if (device.pin(i)) {
+                pinned[n++] = i;
+            }
+        }
+        pinnedMetadata = Arrays.copyOf(pinned, n);
+    }
+    
+    /**
+     * Undoes pinMetadata( ), unpinning only the blocks it could pin, so the
+     * pins others hold on the same blocks stay
+     */
+    private void unpinMetadata() {
+        for (int blockId : pinnedMetadata) {
+            device.unpin(blockId);
+        }
+        pinnedMetadata = new int[0];
+    }
+    
+    /**
+     * Pins the indirect block of an open file, if it has one, until the file
+     * is closed or loses the block
+     */
+    private void pinIndirect(FileTableEntry ftEnt) {
+        int indirect = ftEnt.inode.indirect;
+        if (ftEnt.pinnedIndirect == -1 && indirect > 0 && device.pin(indirect)) {
+            ftEnt.pinnedIndirect = indirect;
+        }
+    }
+    
+    private void unpinIndirect(FileTableEntry ftEnt) {
+        if (ftEnt.pinnedIndirect != -1) {
+            device.unpin(ftEnt.pinnedIndirect);
+            ftEnt.pinnedIndirect = -1;
         }
-        return true;
     }
     
     /**
@@ -522,6 +961,7 @@ public class FileSystem {
      * This lets us have access to all private members of the filename entry we 
      * are trying to delete. With this inode, we can use the iNumber to free it 
      * from the directory and deallocate the file.  
+     * A file some process has open isn't deleted.
      * 
      * @param filename that is used to find the file to delete
      * @return true or false based on if deletion happened or not
@@ -536,16 +976,67 @@ public class FileSystem {
             return false;
         } 
         
-        //gets the iNumber of the file name
-        iNumber = directory.namei(filename);
-       
-        //checks if the iNumber is -1, which means it does not exist
-        if(iNumber == -1){
-            return false;
-        }
+        superblock.markDirty();
         
-        //deallocates file
-        return directory.ifree((short)iNumber);
+        //the file can't be opened (falloc) or flushed while it goes away, and
+        //nobody may have it open: the freed inode would be handed to the
+        //next new file while their entries still point at it
+        synchronized (delayed) {
+            synchronized (filetable) {
+                //gets the iNumber of the file name
+                iNumber = directory.namei(filename);
+               
+                //checks if the iNumber is -1, which means it does not exist
+                if(iNumber == -1){
+                    return false;
+                }
+                
+                Inode node = inodes.get((short)iNumber);
+                if (node.count > 0) {
+                    inodes.put((short)iNumber);
+                    SysLib.cerr("A process is using the file, cannot delete");
+                    return false;
+                }
+                
+                //gives the file's blocks back (dropping them from the device's
+                //memory, other files keep their cached blocks) and empties its
+                //inode, so the next file to get it doesn't start out with these
+                //blocks; the ones delayed allocation holds are just dropped
+                delayed.removeFile((short)iNumber);
+                freeBlocks(readIndex(node).blocks());
+                node.reset();
+                inodes.markDirty((short)iNumber);
+                inodes.put((short)iNumber);
+                
+                //deallocates file
+                return directory.ifree((short)iNumber);
+            }
+        }
+    }
+    
+    //where statfs puts each value
+    public final static int STATFS_TOTAL_BLOCKS = 0;
+    public final static int STATFS_FREE_BLOCKS = 1;
+    public final static int STATFS_TOTAL_INODES = 2;
+    public final static int STATFS_FREE_INODES = 3;
+    public final static int STATFS_SIZE = 4;
+    
+    /**
+     * Tells how full the file system is. The free counts are counters the
+     * allocator and the directory keep up to date as blocks and inodes come
+     * and go, so this doesn't read the disk or walk the bitmap.
+     * @param info gets the values at the STATFS_ indexes, as many as fit
+     * @return the number of values filled in
+     */
+    int statfs(int[] info) {
+        int[] values = new int[STATFS_SIZE];
+        values[STATFS_TOTAL_BLOCKS] = superblock.totalBlocks;
+        values[STATFS_FREE_BLOCKS] = allocator.freeBlocks();
+        values[STATFS_TOTAL_INODES] = superblock.totalInodes;
+        values[STATFS_FREE_INODES] = directory.freeInodes();
+        int n = Math.min(info.length, STATFS_SIZE);
+        System.arraycopy(values, 0, info, 0, n);
+        return n;
     }
     
     //The start positions of the file pointer
@@ -8,6 +8,7 @@ public class FileTable {
     private final Vector table;
    //private final LinkedList<FileTableEntry> table; // the actual entity of this file table
    private final Directory dir;        // the root directory
+   private final InodeCache inodes;    // the one in-memory copy of each inode
    
    //Added by Dwina Solihin
    public final static int UNUSED = 0; //file does not exist
@@ -15,10 +16,11 @@ public class FileTable {
    public final static int READ = 2; //read by someone
    public final static int WRITE = 3; //written by someone
 
-   public FileTable( Directory directory ) { // constructor
+   public FileTable( Directory directory, InodeCache inodes ) { // constructor
       //table = new LinkedList<>( );     // instantiate a file (structure) table
       table = new Vector();
       dir = directory;           // receive a reference to the Director
+      this.inodes = inodes;      // and the inodes the file system shares
    }                             // from the file system
 
    // major public methods
@@ -35,7 +37,8 @@ public class FileTable {
            
            //checks if inode for give filename is there
            if(iNumber >= 0){
-               inode = new Inode(iNumber);
+               //the inode every entry of the file shares, not a copy of its own
+               inode = inodes.get(iNumber);
                
                //checks if the file is read
                if (mode.equals("r")){
@@ -67,6 +70,8 @@ public class FileTable {
                         } catch (InterruptedException e){}
                     }
                 }
+               //not ours yet, the next time around gets it again
+               inodes.put(iNumber);
                
                //if the mode for the given file does not exist
                
@@ -80,7 +85,7 @@ public class FileTable {
                     SysLib.cerr("Error occured trying to allocate iNumber within falloc for " + filename);
                     SysLib.exit();
                 }
-                inode = new Inode(iNumber);
+                inode = inodes.get(iNumber);
                 inode.flag = WRITE;
                 break;
             } else {  
@@ -88,7 +93,7 @@ public class FileTable {
             }
        }
         inode.count++; //increment number of users
-        inode.toDisk(iNumber); //writes to disk
+        inodes.markDirty(iNumber); //written to disk with the rest of its block
         
         //creates new FTE and adds it to the file table
         FileTableEntry newEntry = new FileTableEntry (inode, iNumber, mode);
@@ -133,8 +138,8 @@ public class FileTable {
 //      // return true if this file table entry found in my table
 //      return found;
 
-        //receive a file table entry reference
-        Inode inode = new Inode(e.iNumber);
+        //receive a file table entry reference, its inode is the one shared copy
+        Inode inode = e.inode;
         //free this file table entry, checks if read or write
         if (table.remove(e)){
             if (inode.flag == READ){
@@ -146,10 +151,11 @@ public class FileTable {
                 inode.flag = USED;
                 notifyAll();
             }
-            inode.count++;
+            inode.count--; //one user less
             
-            //save the corresponding inode to disk
-            inode.toDisk(e.iNumber);
+            //the corresponding inode goes to disk once its last user is done
+            inodes.markDirty(e.iNumber);
+            inodes.put(e.iNumber);
             return true; //return true if the FTE found in my table
         }
         return false; //not found
@@ -4,6 +4,9 @@ public class FileTableEntry {          // Each table entry should have
    public final short iNumber;         //    this inode number
    public int count;                   //    # threads sharing this entry
    public final String mode;           //    "r", "w", "w+", or "a"
+   public int pinnedIndirect = -1;     //    indirect block pinned while open, -1 if none
+   public boolean preallocated = false; //   blocks taken past the end for appends
+   public int reserved = 0;            //    bytes fallocate took blocks for
    public FileTableEntry ( Inode i, short inumber, String m ) {
       seekPtr = 0;             // the seek pointer is set to the file top
       inode = i;
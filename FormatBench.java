@@ -0,0 +1,48 @@
+/**
+ * Times format( ), run from the ThreadOS loader:
+ *   l FormatBench
+ *
+ * Formats the simulated 1000 block disk (through its own FileSystem on a
+ * RawDevice, so every block written is a disk request), then 1k, 64k and 1M
+ * block disks kept in memory (MemDevice, the simulated disk can't be that
+ * big), and prints the time and the number of blocks read and written. The
+ * in-memory times leave out the disk, the block counts are what a disk would
+ * be asked for.
+ *
+ * Formats the disk: run Test5 or format again afterwards, the kernel's file
+ * system doesn't know.
+ */
+class FormatBench extends Thread {
+    final static int[] BLOCKS = { 1000, 65536, 1048576 };
+    final static int FILES = 48;
+
+    public FormatBench( String args[] ) {
+    }
+
+    public FormatBench( ) {
+    }
+
+    public void run( ) {
+        SysLib.sync( ); // nothing of the kernel's left to write over ours
+        FileSystem fs = new FileSystem( 1000, new RawDevice( ) );
+        long start = System.currentTimeMillis( );
+        fs.format( FILES );
+        SysLib.cout( "format( " + FILES + " ), 1000 blocks on the disk: " +
+                     ( System.currentTimeMillis( ) - start ) + " ms\n" );
+
+        for ( int i = 0; i < BLOCKS.length; i++ ) {
+            MemDevice device = new MemDevice( BLOCKS[i] );
+            fs = new FileSystem( BLOCKS[i], device );
+            long reads = device.getReads( );
+            long writes = device.getWrites( );
+            start = System.currentTimeMillis( );
+            fs.format( FILES );
+            SysLib.cout( "format( " + FILES + " ), " + BLOCKS[i] + " blocks in memory: " +
+                         ( System.currentTimeMillis( ) - start ) + " ms, " +
+                         ( device.getReads( ) - reads ) + " blocks read, " +
+                         ( device.getWrites( ) - writes ) + " written\n" );
+        }
+        SysLib.cout( "FormatBench completed\n" );
+        SysLib.exit( );
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Doubly linked list of frame numbers kept in int arrays, used by the list
+ * based eviction policies. The head is the most recently used end. A frame is
+ * on at most one FrameList of a set sharing the same link arrays.
+ */
+class FrameList {
+    private final int[] prev;
+    private final int[] next;
+    private int head = -1;
+    private int tail = -1;
+    private int size = 0;
+
+    /**
+     * @param prev shared link array, one slot per frame
+     * @param next shared link array, one slot per frame
+     */
+    FrameList(int[] prev, int[] next) {
+        this.prev = prev;
+        this.next = next;
+    }
+
+    void addFirst(int frame) {
+        prev[frame] = -1;
+        next[frame] = head;
+        if (head != -1) {
+            prev[head] = frame;
+        }
+        head = frame;
+        if (tail == -1) {
+            tail = frame;
+        }
+        size++;
+    }
+
+    void unlink(int frame) {
+        if (prev[frame] != -1) {
+            next[prev[frame]] = next[frame];
+        }
+        else {
+            head = next[frame];
+        }
+        if (next[frame] != -1) {
+            prev[next[frame]] = prev[frame];
+        }
+        else {
+            tail = prev[frame];
+        }
+        size--;
+    }
+
+    void moveToFirst(int frame) {
+        if (head != frame) {
+            unlink(frame);
+            addFirst(frame);
+        }
+    }
+
+    /**
+     * @return the least recently used evictable frame, -1 if there's none
+     */
+    int lastEvictable(EvictionPolicy.FrameFilter filter) {
+        for (int f = tail; f != -1; f = prev[f]) {
+            if (filter.evictable(f)) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    int size() {
+        return size;
+    }
+}
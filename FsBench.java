@@ -0,0 +1,117 @@
+/**
+ * Benchmark for the file system's block allocation, run from the ThreadOS
+ * loader:
+ *   l FsBench
+ *
+ * Lays out a few 13 block files like Test5's "bothell", three times: with
+ * blocks taken one at a time (the allocator's next free block, like before
+ * extents), with extents, and with extents and delayed allocation, which
+ * gives the files their blocks at sync( ). Each time it writes
+ *  - "bothell", 6656 bytes in one write, and
+ *  - "log0" to "log3", all open at once with "a", 13 appends of 512 bytes
+ *    each, taking turns, the way files that grow side by side are written.
+ * Then it prints every file's fragmentation report and how fast the files
+ * read back, straight from the disk and through a cache (64 frames, started
+ * cold for every file) whose readahead only pays off when a file's blocks
+ * are consecutive on the disk.
+ *
+ * It mounts its own FileSystem on a RawDevice, so every block read is a disk
+ * read (the simulated disk pays for each seek), and formats the disk: run
+ * Test5 or format again afterwards, the kernel's file system doesn't know.
+ */
+class FsBench extends Thread {
+    final static String[] LOGS = { "log0", "log1", "log2", "log3" };
+    final static int BLOCKS = 13;
+    final static int ROUNDS = 3; // times every file is read back
+
+    public FsBench( String args[] ) {
+    }
+
+    public FsBench( ) {
+    }
+
+    public void run( ) {
+        SysLib.sync( ); // nothing of the kernel's left to write over ours
+        layout( false, false );
+        layout( true, false );
+        layout( true, true );
+        SysLib.cout( "FsBench completed\n" );
+        SysLib.exit( );
+    }
+
+    private void layout( boolean extents, boolean delayed ) {
+        FileSystem fs = new FileSystem( 1000, new RawDevice( ) );
+        fs.setExtents( extents );
+        fs.setDelayedAllocation( delayed );
+        fs.format( 48 );
+        byte[] data = new byte[512 * BLOCKS];
+        for ( int i = 0; i < data.length; i++ )
+            data[i] = ( byte )( i % 256 );
+
+        FileTableEntry ftEnt = fs.open( "bothell", "w+" );
+        fs.write( ftEnt, data );
+        fs.close( ftEnt );
+
+        FileTableEntry[] logs = new FileTableEntry[LOGS.length];
+        for ( int f = 0; f < LOGS.length; f++ )
+            logs[f] = fs.open( LOGS[f], "a" );
+        byte[] block = new byte[512];
+        for ( int b = 0; b < BLOCKS; b++ ) {
+            System.arraycopy( data, b * 512, block, 0, 512 );
+            for ( int f = 0; f < LOGS.length; f++ )
+                fs.write( logs[f], block );
+        }
+        for ( int f = 0; f < LOGS.length; f++ )
+            fs.close( logs[f] );
+
+        fs.sync( ); // delayed allocation places the blocks here
+        SysLib.cout( ( delayed ? "delayed allocation" : extents ? "extents" : "one block at a time" ) + "\n" );
+        SysLib.cout( "  " + fs.fragmentation( "bothell" ) + "\n" );
+        for ( int f = 0; f < LOGS.length; f++ )
+            SysLib.cout( "  " + fs.fragmentation( LOGS[f] ) + "\n" );
+
+        SysLib.cout( "  read bothell: " + readTime( fs, "bothell", data ) + "\n" );
+        long ms = 0;
+        for ( int f = 0; f < LOGS.length; f++ )
+            ms += readTime( fs, LOGS[f], data );
+        SysLib.cout( "  read logs: " + ms / LOGS.length + " (average)\n" );
+
+        fs.sync( ); // the directory, for the mount below
+        SysLib.cout( "  cached read bothell: " + cachedReadTime( "bothell", data ) + "\n" );
+        ms = 0;
+        for ( int f = 0; f < LOGS.length; f++ )
+            ms += cachedReadTime( LOGS[f], data );
+        SysLib.cout( "  cached read logs: " + ms / LOGS.length + " (average)\n" );
+    }
+
+    private long cachedReadTime( String file, byte[] expected ) {
+        Cache cache = new Cache( 512, 64 );
+        FileSystem fs = new FileSystem( 1000, new CachedDevice( cache ) );
+        long ms = readTime( fs, file, expected );
+        cache.flush( );
+        return ms;
+    }
+
+    //reads a file whole ROUNDS times, checks it and returns ms per read
+    //(on a cache that's ms for the first read over ROUNDS)
+    private long readTime( FileSystem fs, String file, byte[] expected ) {
+        byte[] buffer = new byte[expected.length];
+        long start = System.currentTimeMillis( );
+        for ( int r = 0; r < ROUNDS; r++ ) {
+            FileTableEntry ftEnt = fs.open( file, "r" );
+            int size = fs.read( ftEnt, buffer );
+            fs.close( ftEnt );
+            if ( size != expected.length ) {
+                SysLib.cout( file + ": read " + size + " bytes (wrong)\n" );
+                return -1;
+            }
+        }
+        long elapsed = ( System.currentTimeMillis( ) - start ) / ROUNDS;
+        for ( int i = 0; i < expected.length; i++ )
+            if ( buffer[i] != expected[i] ) {
+                SysLib.cout( file + ": byte " + i + " is " + buffer[i] + " (wrong)\n" );
+                return -1;
+            }
+        return elapsed;
+    }
+}
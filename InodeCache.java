@@ -0,0 +1,194 @@
+/**
+ * Keeps one Inode in memory per inode number, shared by every file table
+ * entry of the file and by the file system, so they can't hold copies that
+ * disagree and an open of a file already in memory doesn't read the disk.
+ *
+ * get( ) hands out the inode and counts the reference, put( ) gives it back.
+ * A miss reads the inode's block and keeps every inode in it. An inode nobody
+ * references stays in memory, for the next open, until room is needed for
+ * another one: then the clock hand evicts the first inode that isn't
+ * referenced and isn't dirty. The inode's own count field is left alone,
+ * it's the number of file table entries the FileTable keeps on the disk.
+ *
+ * A change to an inode isn't written right away: markDirty( ) flags it, and
+ * the inode block is written once for all the dirty inodes in it, when the
+ * last reference to one of them is put back, on sync( ) (the file system's
+ * sync and the InodeFlusher) or before a dirty inode would be evicted.
+ */
+class InodeCache {
+    private final BlockDevice device;
+    private final DiskFormat format;
+    private final Inode[] inodes;    //by inode number, null if not in memory
+    private final int[] refs;        //get( )s not put( ) back yet
+    private final boolean[] dirty;   //changed since its block was last written
+    private final int capacity;      //most inodes in memory at once
+    private int cached = 0;          //inodes in memory
+    private int hand = 0;            //where the next eviction looks first
+
+    private long hits = 0;
+    private long misses = 0;
+    private long blocksWritten = 0;  //inode block writes
+    private long inodesWritten = 0;  //dirty inodes those writes carried
+
+    /**
+     * @param totalInodes inodes on the disk
+     * @param capacity most inodes kept in memory, more only while referenced
+     * or dirty
+     * @param device where the inodes are read from and written to
+     * @param format the disk's format version
+     */
+    InodeCache(int totalInodes, int capacity, BlockDevice device, DiskFormat format) {
+        this.device = device;
+        this.format = format;
+        this.capacity = Math.max(format.inodesPerBlock, capacity);
+        inodes = new Inode[totalInodes];
+        refs = new int[totalInodes];
+        dirty = new boolean[totalInodes];
+    }
+
+    /**
+     * Hands out a file's inode, read from the disk (with the rest of its
+     * block) if it isn't in memory
+     * @return the inode, the same object until every reference is put back
+     * and it's evicted
+     */
+    synchronized Inode get(short iNumber) {
+        if (inodes[iNumber] != null) {
+            hits++;
+        } else {
+            misses++;
+            load(format.inodeBlock(iNumber));
+        }
+        refs[iNumber]++;
+        return inodes[iNumber];
+    }
+
+    /**
+     * Gives back a reference get( ) handed out. If it was the last one and
+     * the inode is dirty, its block is written.
+     */
+    synchronized void put(short iNumber) {
+        if (refs[iNumber] > 0) {
+            refs[iNumber]--;
+        }
+        if (refs[iNumber] == 0 && dirty[iNumber]) {
+            writeBack(format.inodeBlock(iNumber));
+        }
+    }
+
+    /**
+     * Flags an inode handed out by get( ) as changed, for the next write of
+     * its block
+     */
+    synchronized void markDirty(short iNumber) {
+        if (inodes[iNumber] != null) {
+            dirty[iNumber] = true;
+        }
+    }
+
+    /**
+     * Writes every inode block holding a dirty inode, once each
+     * @return the number of blocks written
+     */
+    synchronized int sync() {
+        int written = 0;
+        for (int i = 0; i < inodes.length; i++) {
+            if (dirty[i]) {
+                writeBack(format.inodeBlock(i)); //clears the rest of the block too
+                written++;
+            }
+        }
+        return written;
+    }
+
+    //reads an inode block and keeps its inodes that aren't in memory yet
+    private void load(int blockNumber) {
+        int first = (blockNumber - 1) * format.inodesPerBlock;
+        int last = Math.min(inodes.length, first + format.inodesPerBlock);
+        while (cached + (last - first) > capacity && evict()) {
+        }
+        byte[] block = new byte[Disk.blockSize];
+        if (device.read(blockNumber, block) != Kernel.OK) {
+            SysLib.cerr("Could not read inode block " + blockNumber + "\n");
+        }
+        for (int i = first; i < last; i++) {
+            if (inodes[i] == null) {
+                inodes[i] = new Inode(block, format.inodeOffset(i), format);
+                cached++;
+            }
+        }
+    }
+
+    //writes an inode block from the inodes in memory, reading it first only
+    //if some of its inodes aren't
+    private void writeBack(int blockNumber) {
+        int first = (blockNumber - 1) * format.inodesPerBlock;
+        int last = Math.min(inodes.length, first + format.inodesPerBlock);
+        byte[] block = new byte[Disk.blockSize];
+        for (int i = first; i < last; i++) {
+            if (inodes[i] == null) {
+                device.read(blockNumber, block);
+                break;
+            }
+        }
+        for (int i = first; i < last; i++) {
+            if (inodes[i] != null) {
+                inodes[i].toBytes(block, format.inodeOffset(i));
+                if (dirty[i]) {
+                    inodesWritten++;
+                    dirty[i] = false;
+                }
+            }
+        }
+        if (device.write(blockNumber, block) != Kernel.OK) {
+            SysLib.cerr("Could not write inode block " + blockNumber + "\n");
+        }
+        blocksWritten++;
+    }
+
+    /**
+     * Drops an inode that isn't referenced or dirty, if there is one (all of
+     * them may be in use, then the cache grows past its capacity for now)
+     * @return false if there was none
+     */
+    private boolean evict() {
+        for (int i = 0; i < inodes.length; i++) {
+            int candidate = (hand + i) % inodes.length;
+            if (inodes[candidate] != null && refs[candidate] == 0 && !dirty[candidate]) {
+                inodes[candidate] = null;
+                cached--;
+                hand = (candidate + 1) % inodes.length;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return gets served from memory
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return gets that read the inode from the disk
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return inode blocks written
+     */
+    synchronized long getBlocksWritten() {
+        return blocksWritten;
+    }
+
+    /**
+     * @return dirty inodes written, more than the blocks when writes coalesced
+     */
+    synchronized long getInodesWritten() {
+        return inodesWritten;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Background write-back daemon for the file system's dirty inodes (see
+ * InodeCache), started by the Kernel at BOOT.
+ *
+ * Every interval it has the file system write each inode block holding a
+ * dirty inode, so an inode changed by a file that stays open doesn't wait
+ * for its close or the next sync( ) to reach the disk, and the inodes
+ * changed in between share one write per block.
+ */
+public class InodeFlusher extends Thread {
+    private final FileSystem fs;
+
+    private long interval = 500; //in milliseconds
+
+    private long flushes = 0;       //runs that wrote at least one block
+    private long blocksWritten = 0; //inode blocks written by those runs
+
+    public InodeFlusher(FileSystem fs) {
+        this.fs = fs;
+        setDaemon(true); //never keeps ThreadOS from exiting
+    }
+
+    /**
+     * @param interval time in ms between two write-backs
+     */
+    public synchronized void setInterval(long interval) {
+        this.interval = Math.max(1, interval);
+    }
+
+    /**
+     * @return how many flusher runs wrote something back
+     */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * @return how many inode blocks the flusher wrote back
+     */
+    public synchronized long getBlocksWritten() {
+        return blocksWritten;
+    }
+
+    public void run() {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                wait = interval;
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {}
+            int written = fs.syncInodes();
+            if (written > 0) {
+                synchronized (this) {
+                    flushes++;
+                    blocksWritten += written;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Checks that a file stays with its inode while it is open, run from the
+ * ThreadOS loader after Test5 (it formats the disk again):
+ *   l InodeTest
+ *
+ * Every file table entry of a file shares the one Inode the InodeCache keeps
+ * for it. Deleting a file somebody has open would let the next new file get
+ * the same inode, and the open entry would then read and write that file.
+ */
+class InodeTest extends Thread {
+  final static int FILES = 16;
+  final int[] info = new int[4];
+  final byte[] bufHeld = new byte[1024];
+  final byte[] bufOther = new byte[1024];
+  int fdHeld;
+  int fdOther;
+  int size;
+
+  public InodeTest( String args[] ) {
+  }
+
+  public InodeTest( ) {
+  }
+
+  public void run( ) {
+    if ( test1( ) ) // format, write "held", delete it while open
+      SysLib.cout("Correct behavior of deleting an open file.......2\n");
+    if ( test2( ) ) // open and write "other", read both back
+      SysLib.cout("Correct behavior of opening another file........2\n");
+    if ( test3( ) ) // close "held", delete it, open "fresh"
+      SysLib.cout("Correct behavior of deleting after the close....2\n");
+
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: delete( \"held\" ) while it is open...." );
+    SysLib.format( FILES );
+    for ( int i = 0; i < bufHeld.length; i++ ) {
+      bufHeld[i] = ( byte )1;
+      bufOther[i] = ( byte )2;
+    }
+    fdHeld = SysLib.open( "held", "w+" );
+    size = SysLib.write( fdHeld, bufHeld );
+    if ( size != bufHeld.length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.delete( "held" ) != -1 ) {
+      SysLib.cout( "the open file was deleted (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: open( \"other\", \"w+\" ) and read back.." );
+    fdOther = SysLib.open( "other", "w+" );
+    size = SysLib.write( fdOther, bufOther );
+    if ( size != bufOther.length ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.fsize( fdHeld ) != bufHeld.length ) {
+      SysLib.cout( "fsize( held ) = " + SysLib.fsize( fdHeld ) + " (wrong)\n" );
+      return false;
+    }
+    byte[] tmpBuf = new byte[1024];
+    SysLib.seek( fdHeld, 0, 0 );
+    SysLib.read( fdHeld, tmpBuf );
+    for ( int i = 0; i < tmpBuf.length; i++ )
+      if ( tmpBuf[i] != bufHeld[i] ) {
+        SysLib.cout( "held[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.seek( fdOther, 0, 0 );
+    SysLib.read( fdOther, tmpBuf );
+    for ( int i = 0; i < tmpBuf.length; i++ )
+      if ( tmpBuf[i] != bufOther[i] ) {
+        SysLib.cout( "other[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: close, delete( \"held\" ), open \"fresh\"." );
+    SysLib.close( fdHeld );
+    if ( SysLib.delete( "held" ) != 0 ) {
+      SysLib.cout( "delete failed (wrong)\n" );
+      return false;
+    }
+    int fd = SysLib.open( "fresh", "w" );
+    if ( SysLib.fsize( fd ) != 0 ) {
+      SysLib.cout( "fsize( fresh ) = " + SysLib.fsize( fd ) + " (wrong)\n" );
+      return false;
+    }
+    SysLib.close( fd );
+    if ( SysLib.fsize( fdOther ) != bufOther.length ) {
+      SysLib.cout( "fsize( other ) = " + SysLib.fsize( fdOther ) + " (wrong)\n" );
+      return false;
+    }
+    SysLib.close( fdOther );
+    SysLib.statfs( info );
+    if ( info[3] != FILES - 3 ) { // the directory, "other" and "fresh"
+      SysLib.cout( "freeInodes = " + info[3] + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
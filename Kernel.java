@@ -3,10 +3,14 @@
 */
 import java.io.BufferedReader;
 
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 
 public class Kernel
 {
@@ -42,6 +46,16 @@ public final static int SEEK    = 17; // SysLib.seek( int fd, int offest,
 public final static int FORMAT  = 18; // SysLib.format( int files )
 public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+// Cache tuning and statistics
+public final static int CSTATS  = 20; // SysLib.cstats( long stats[] )
+public final static int CRESIZE = 21; // SysLib.cresize( int blocks )
+
+// File system statistics
+public final static int STATFS  = 22; // SysLib.statfs( int info[] )
+
+// File preallocation
+public final static int FALLOCATE = 23; // SysLib.fallocate( int fd, int bytes )
+
 // Predefined file descriptors
 public final static int STDIN  = 0;
 public final static int STDOUT = 1;
@@ -55,6 +69,8 @@ public final static int ERROR = -1;
 private static Scheduler scheduler;
 private static Disk disk;
 private static Cache cache;
+private static CacheFlusher flusher;
+private static InodeFlusher inodeFlusher;
 
 // Synchronized Queues
 private static SyncQueue waitQueue;  // for threads to wait for their child
@@ -63,6 +79,13 @@ private static SyncQueue ioQueue;    // I/O queue
 private final static int COND_DISK_REQ = 1; // wait condition
 private final static int COND_DISK_FIN = 2; // wait condition
 
+// The disk takes one request at a time and the interrupt only wakes COND_DISK_FIN,
+// so threads doing disk I/O at the same time (e.g. cache misses in different
+// cache shards) take turns on this lock instead of racing for the disk
+private final static Object diskLock = new Object( );
+private static long diskReads = 0;  // disk requests made, counted under diskLock
+private static long diskWrites = 0;
+
 private static FileSystem fs;
 
 // Standard input
@@ -78,21 +101,86 @@ switch( irq ) {
 case INTERRUPT_SOFTWARE: // System calls
     switch( cmd ) {
     case BOOT:
+    // args is null from SysLib.boot( ), or the name=value arguments given to Boot
+    String[] bootArgs = ( String[] )args;
+
     // instantiate and start a scheduler
     scheduler = new Scheduler( );
     scheduler.start( );
 
-    // instantiate and start a disk
-    disk = new Disk( 1000 );
+    // instantiate and start a disk, disk=N sets its number of blocks (a
+    // disk over 32767 blocks is formatted with 32 bit block pointers)
+    int diskBlocks;
+    try {
+        diskBlocks = Integer.parseInt( bootArg( bootArgs, "disk", "1000" ) );
+    } catch ( NumberFormatException e ) {
+        diskBlocks = -1;
+    }
+    if ( diskBlocks < 100 ) {
+        System.err.println( "threadOS: bad disk size, using 1000 blocks" );
+        diskBlocks = 1000;
+    }
+    disk = new Disk( diskBlocks );
     disk.start( );
 
-    // instantiate a cache memory
-    cache = new Cache( disk.blockSize, 10 );
+    // instantiate a cache memory, policy=clock|lru|2q|arc picks its eviction
+    String policy = bootArg( bootArgs, "policy", "clock" );
+    if ( !Arrays.asList( Cache.POLICIES ).contains( policy ) ) {
+        System.err.println( "threadOS: unknown cache policy " + policy + ", using clock" );
+        policy = "clock";
+    }
+    // cache=N sets the number of cache blocks, SysLib.cresize changes it later
+    int cacheBlocks;
+    try {
+        cacheBlocks = Integer.parseInt( bootArg( bootArgs, "cache", "10" ) );
+    } catch ( NumberFormatException e ) {
+        cacheBlocks = -1;
+    }
+    if ( cacheBlocks < 1 || cacheBlocks > Cache.MAX_BLOCKS ) {
+        System.err.println( "threadOS: bad cache size, using 10 blocks" );
+        cacheBlocks = 10;
+    }
+    cache = new Cache( disk.blockSize, cacheBlocks, policy, diskBlocks );
+
+    // trace=file records every cache access for CacheSim
+    String traceFile = bootArg( bootArgs, "trace", null );
+    if ( traceFile != null ) {
+        try {
+            cache.setTrace( new PrintStream( new FileOutputStream( traceFile ), true ) );
+        } catch ( FileNotFoundException e ) {
+            System.err.println( "threadOS: cannot open trace file " + traceFile );
+        }
+    }
 
-    // instantiate synchronized queues
+    // instantiate synchronized queues, before anything can request the disk
     ioQueue = new SyncQueue( );
     waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
-	fs = new FileSystem(1000);
+
+    // instantiate and start the cache's background write-back,
+    // flush=high,low sets its dirty watermarks in percent of the cache,
+    // flushage=ms the longest a block stays dirty and flushinterval=ms
+    // how often it looks
+    flusher = new CacheFlusher( cache );
+    String watermarks = bootArg( bootArgs, "flush", null );
+    if ( watermarks != null && !setWatermarks( flusher, watermarks ) )
+        System.err.println( "threadOS: bad flush watermarks " + watermarks + ", using 50,20" );
+    long flushAge = bootMillis( bootArgs, "flushage" );
+    if ( flushAge > 0 )
+        flusher.setMaxAge( flushAge );
+    long flushInterval = bootMillis( bootArgs, "flushinterval" );
+    if ( flushInterval > 0 )
+        flusher.setInterval( flushInterval );
+    flusher.start( );
+    // fscache=off mounts the file system on the raw disk instead of the cache
+    if ( "off".equals( bootArg( bootArgs, "fscache", "on" ) ) )
+	fs = new FileSystem(diskBlocks, new RawDevice( ));
+    else
+	fs = new FileSystem(diskBlocks, new CachedDevice( cache ));
+    // delalloc=on gives written blocks their disk blocks only when they're synced
+    fs.setDelayedAllocation( "on".equals( bootArg( bootArgs, "delalloc", "off" ) ) );
+    // and the background write-back of the inodes it changes
+    inodeFlusher = new InodeFlusher( fs );
+    inodeFlusher.start( );
     return OK;
     case EXEC:
     return sysExec( ( String[] )args );
@@ -120,10 +208,13 @@ case INTERRUPT_SOFTWARE: // System calls
     scheduler.sleepThread( param ); // param = milliseconds
     return OK;
     case RAWREAD: // read a block of data from disk
+    synchronized ( diskLock ) {
+    diskReads++;
     while ( disk.read( param, ( byte[] )args ) == false )
         ioQueue.enqueueAndSleep( COND_DISK_REQ );
     while ( disk.testAndResetReady( ) == false )
         ioQueue.enqueueAndSleep( COND_DISK_FIN );
+    }
 
     // it's possible that a thread waiting to make a request was released by the disk,
     // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
@@ -132,20 +223,29 @@ case INTERRUPT_SOFTWARE: // System calls
     // now you can access data in buffer
     return OK;
     case RAWWRITE: // write a block of data to disk
+    synchronized ( diskLock ) {
+    diskWrites++;
     while ( disk.write( param, ( byte[] )args ) == false )
         ioQueue.enqueueAndSleep( COND_DISK_REQ );
     while ( disk.testAndResetReady( ) == false )
         ioQueue.enqueueAndSleep( COND_DISK_FIN );
+    }
     // it's possible that a thread waiting to make a request was released by the disk,
     // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
     // and then went back to sleep
     
     return OK;
     case SYNC:     // synchronize disk data to a real file
+    // the directory and the superblock, marked clean if no file is open
+    fs.sync( );
+    // the file system's blocks may still be dirty in the cache
+    cache.sync( );
+    synchronized ( diskLock ) {
     while ( disk.sync( ) == false )
         ioQueue.enqueueAndSleep( COND_DISK_REQ );
     while ( disk.testAndResetReady( ) == false )
         ioQueue.enqueueAndSleep( COND_DISK_FIN );
+    }
 
     // it's possible that a thread waiting to make a request was released by the disk,
     // but then promptly looped back, found the buffer wasn't available for sending (bufferReady == true)
@@ -177,8 +277,11 @@ case INTERRUPT_SOFTWARE: // System calls
             System.out.println("threadOS: caused read errors");
         return ERROR;
     }
-    // return FileSystem.read( param, byte args[] );
-    return ERROR;
+		if ((myTcb = scheduler.getMyTcb()) == null)
+			return ERROR;
+		if ((myFte = myTcb.getFtEnt(param)) == null)
+			return ERROR;
+		return fs.read(myFte, (byte[]) args);
     case WRITE:
     switch ( param ) {
     case STDIN:
@@ -190,6 +293,12 @@ case INTERRUPT_SOFTWARE: // System calls
     case STDERR:
         System.err.print( (String)args );
         break;
+    default:
+		if ((myTcb = scheduler.getMyTcb()) == null)
+			return ERROR;
+		if ((myFte = myTcb.getFtEnt(param)) == null)
+			return ERROR;
+		return fs.write(myFte, (byte[]) args);
     }
     return OK;
     case CREAD:   // to be implemented in assignment 4
@@ -235,6 +344,30 @@ case INTERRUPT_SOFTWARE: // System calls
 		return (fs.format(param) == true) ? OK : ERROR;
     case DELETE:  // to be implemented in project
 		return (fs.delete((String) args) == true) ? OK : ERROR;
+    case CSTATS:  // returns the number of values filled in, see CacheStats
+    long[] stats = ( long[] )args;
+    int filled = cache.getStats( stats );
+    synchronized ( diskLock ) {
+    if ( filled > CacheStats.DISK_WRITES ) {
+        stats[CacheStats.DISK_READS] = diskReads;
+        stats[CacheStats.DISK_WRITES] = diskWrites;
+    }
+    }
+    if ( filled > CacheStats.FLUSHER_BYTES ) {
+        stats[CacheStats.FLUSHER_RUNS] = flusher.getFlushes( );
+        stats[CacheStats.FLUSHER_BYTES] = flusher.getBytesWritten( );
+    }
+    return filled;
+    case CRESIZE: // grows or shrinks the cache to param blocks, up to Cache.MAX_BLOCKS
+    return cache.resize( param ) ? OK : ERROR;
+    case STATFS:  // returns the number of values filled in, see FileSystem
+    return fs.statfs( ( int[] )args );
+    case FALLOCATE: // reserves blocks for the first args[0] bytes of file param
+    if ( ( myTcb = scheduler.getMyTcb( ) ) == null )
+	return ERROR;
+    if ( ( myFte = myTcb.getFtEnt( param ) ) == null )
+	return ERROR;
+    return fs.fallocate( myFte, ( ( int[] )args )[0] ) ? OK : ERROR;
     }
     return ERROR;
 case INTERRUPT_DISK: // Disk interrupts
@@ -251,6 +384,45 @@ case INTERRUPT_IO:   // other I/O interrupts (not implemented)
 return OK;
 }
 
+// Looks up a name=value boot argument
+private static String bootArg( String args[], String name, String defaultValue ) {
+if ( args != null ) {
+    for ( int i = 0; i < args.length; i++ ) {
+    if ( args[i].startsWith( name + "=" ) )
+        return args[i].substring( name.length( ) + 1 );
+    }
+}
+return defaultValue;
+}
+
+// Sets the flusher's watermarks from a flush=high,low boot argument
+private static boolean setWatermarks( CacheFlusher flusher, String value ) {
+String[] parts = value.split( "," );
+if ( parts.length != 2 )
+    return false;
+try {
+    return flusher.setWatermarks( Integer.parseInt( parts[0] ),
+				  Integer.parseInt( parts[1] ) );
+} catch ( NumberFormatException e ) {
+    return false;
+}
+}
+
+// Looks up a boot argument in milliseconds, -1 if it's missing or bad
+private static long bootMillis( String args[], String name ) {
+String value = bootArg( args, name, null );
+if ( value == null )
+    return -1;
+try {
+    long ms = Long.parseLong( value );
+    if ( ms > 0 )
+	return ms;
+} catch ( NumberFormatException e ) {
+}
+System.err.println( "threadOS: bad " + name + " " + value + ", using the default" );
+return -1;
+}
+
 // Spawning a new thread
 private static int sysExec( String args[] ) {
 String thrName = args[0]; // args[0] has a thread name
@@ -0,0 +1,42 @@
+/**
+ * Exact LRU: every access moves the frame to the front of one list and the
+ * victim is the evictable frame closest to the back.
+ */
+class LruPolicy implements EvictionPolicy {
+    private final FrameList list;
+    private final boolean[] resident;
+
+    LruPolicy(int frames) {
+        list = new FrameList(new int[frames], new int[frames]);
+        resident = new boolean[frames];
+    }
+
+    public void hit(int frame) {
+        if (resident[frame]) {
+            list.moveToFirst(frame);
+        }
+    }
+
+    public void insert(int frame, int blockId) {
+        if (resident[frame]) {
+            list.unlink(frame);
+        }
+        resident[frame] = true;
+        list.addFirst(frame);
+    }
+
+    public void remove(int frame) {
+        if (resident[frame]) {
+            list.unlink(frame);
+            resident[frame] = false;
+        }
+    }
+
+    public int victim(int blockId, FrameFilter filter) {
+        int f = list.lastEvictable(filter);
+        if (f != -1) {
+            remove(f);
+        }
+        return f;
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * A BlockDevice kept in memory, of any size, for trying the file system on
+ * disks larger than the simulated one (e.g. FormatBench). A block that was
+ * never written reads as zeros and takes no memory. Counts its reads and
+ * writes, which on a RawDevice would each be a disk request.
+ */
+public class MemDevice implements BlockDevice {
+    private final byte[][] blocks;
+    private long reads = 0;
+    private long writes = 0;
+
+    /**
+     * @param totalBlocks number of blocks on the device
+     */
+    public MemDevice(int totalBlocks) {
+        blocks = new byte[totalBlocks][];
+    }
+
+    public synchronized int read(int blockId, byte[] buffer) {
+        if (blockId < 0 || blockId >= blocks.length) {
+            return Kernel.ERROR;
+        }
+        reads++;
+        if (blocks[blockId] == null) {
+            Arrays.fill(buffer, 0, Disk.blockSize, (byte) 0);
+        } else {
+            System.arraycopy(blocks[blockId], 0, buffer, 0, Disk.blockSize);
+        }
+        return Kernel.OK;
+    }
+
+    public synchronized int write(int blockId, byte[] buffer) {
+        if (blockId < 0 || blockId >= blocks.length) {
+            return Kernel.ERROR;
+        }
+        writes++;
+        if (blocks[blockId] == null) {
+            blocks[blockId] = new byte[Disk.blockSize];
+        }
+        System.arraycopy(buffer, 0, blocks[blockId], 0, Disk.blockSize);
+        return Kernel.OK;
+    }
+
+    public void sync() {
+    }
+
+    public void writeBack(int[] blocks) {
+    }
+
+    public void invalidate(int[] blocks) {
+    }
+
+    public boolean pin(int blockId) {
+        return false; //everything is in memory anyway
+    }
+
+    public void unpin(int blockId) {
+    }
+
+    public void prefetch(int blockId) {
+    }
+
+    /**
+     * @return blocks read so far
+     */
+    public synchronized long getReads() {
+        return reads;
+    }
+
+    /**
+     * @return blocks written so far
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+}
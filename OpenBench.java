@@ -0,0 +1,63 @@
+/**
+ * Cost of opening and closing a file, run from the ThreadOS loader:
+ *   l OpenBench
+ *
+ * Creates FILES small files, then opens and closes them in turn, for
+ * reading, ROUNDS times: first on a MemDevice, which counts the blocks read
+ * and written per open and close, then on the simulated disk (a RawDevice,
+ * every block is a disk request), timed.
+ *
+ * Formats the disk: run Test5 or format again afterwards, the kernel's file
+ * system doesn't know.
+ */
+class OpenBench extends Thread {
+    final static int FILES = 8;
+    final static int ROUNDS = 1000;
+    final static int DISK_ROUNDS = 40;
+
+    public OpenBench( String args[] ) {
+    }
+
+    public OpenBench( ) {
+    }
+
+    public void run( ) {
+        MemDevice device = new MemDevice( 1000 );
+        FileSystem fs = setUp( device );
+        long reads = device.getReads( );
+        long writes = device.getWrites( );
+        openClose( fs, ROUNDS );
+        SysLib.cout( "open and close, in memory: " +
+                     ( double )( device.getReads( ) - reads ) / ROUNDS + " blocks read, " +
+                     ( double )( device.getWrites( ) - writes ) / ROUNDS + " written each\n" );
+
+        SysLib.sync( ); // nothing of the kernel's left to write over ours
+        fs = setUp( new RawDevice( ) );
+        long start = System.currentTimeMillis( );
+        openClose( fs, DISK_ROUNDS );
+        SysLib.cout( "open and close, on the disk: " +
+                     ( System.currentTimeMillis( ) - start ) / DISK_ROUNDS + " ms each\n" );
+        fs.sync( );
+        SysLib.cout( "OpenBench completed\n" );
+        SysLib.exit( );
+    }
+
+    private FileSystem setUp( BlockDevice device ) {
+        FileSystem fs = new FileSystem( 1000, device );
+        fs.format( 48 );
+        byte[] data = new byte[100];
+        for ( int f = 0; f < FILES; f++ ) {
+            FileTableEntry ftEnt = fs.open( "open" + f, "w" );
+            fs.write( ftEnt, data );
+            fs.close( ftEnt );
+        }
+        return fs;
+    }
+
+    private void openClose( FileSystem fs, int rounds ) {
+        for ( int r = 0; r < rounds; r++ ) {
+            FileTableEntry ftEnt = fs.open( "open" + r % FILES, "r" );
+            fs.close( ftEnt );
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * A BlockDevice without caching, every read and write is a disk request.
+ */
+public class RawDevice implements BlockDevice {
+    public int read(int blockId, byte[] buffer) {
+        return SysLib.rawread(blockId, buffer);
+    }
+
+    public int write(int blockId, byte[] buffer) {
+        return SysLib.rawwrite(blockId, buffer);
+    }
+
+    public void sync() {
+        //writes are never held back
+    }
+
+    public void writeBack(int[] blocks) {
+    }
+
+    public void invalidate(int[] blocks) {
+    }
+
+    public boolean pin(int blockId) {
+        return false; //nothing is kept in memory
+    }
+
+    public void unpin(int blockId) {
+    }
+
+    public void prefetch(int blockId) {
+    }
+}
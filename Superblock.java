@@ -1,3 +1,9 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Information about super block from Assignment on OneNote:
  * The Superblock is a block managed by the OS. No other information must be 
@@ -6,14 +12,47 @@
  * The purpose of this Superblock class is that it is able to read phys
  * 
  * Created by Dwina Solihin - December 2, 2016
+ *
+ * Disk layout: block 0 is the superblock, the inode blocks follow it, then
+ * the free block bitmap (one bit per disk block, set = in use), then the data
+ * blocks starting at freeList. The bitmap is kept in memory by a
+ * BitmapAllocator and only the bitmap blocks with changed words are written
+ * back on sync.
+ *
+ * Bytes 20 and 24 hold the free block and free inode counts as of the last
+ * sync, for whoever reads the superblock off the disk. The live counts are
+ * the allocator's and the directory's, FileSystem.statfs returns those.
+ *
+ * Byte 28 holds the format version (see DiskFormat): how wide the block
+ * pointers in the inodes and indirect blocks are, and so how many inodes fit
+ * in a block. A disk formatted before it was recorded has 0 there, which
+ * reads as version 1.
+ *
+ * Byte 16 of the superblock is CLEAN_MARKER while the file system is unmounted
+ * cleanly (everything synced and no file open), see markClean( ). The first
+ * open or delete after a mount clears it on the disk. A mount that doesn't
+ * find it can't trust the bitmap and rebuilds it from the inodes.
  */
 
 class Superblock {
     public int totalBlocks; // the number of disk blocks
     public int totalInodes; // the number of inodes
-    public int freeList;    // the block number of the free list's head
+    public int freeList;    // the first data block, all blocks before it are metadata
+    public int freeInodes;  // inodes without a file, as of the last sync (see statfs)
+    
+    private final BlockDevice device; // the disk (or cache) the file system is on
     
-    private final int defaultBlocks = 1000;
+    // at byte 12 of the superblock, tells a bitmap disk from an old linked list one
+    private final static int BITMAP_MAGIC = 0x4249544d;
+    private final static int bitsPerBlock = Disk.blockSize * 8;
+    
+    // at byte 16 of the superblock while the file system is unmounted cleanly
+    private final static int CLEAN_MARKER = 0x434c4e21;
+    
+    private int bitmapStart;       // first block of the bitmap
+    private DiskFormat format;     // the format version of the disk
+    private volatile boolean clean = false; // CLEAN_MARKER is on the disk
+    private BitmapAllocator allocator; // the bitmap, bit b % 64 of word b / 64 is block b
     
 //------------------------------------------------------------------------------
 /**
@@ -21,11 +60,12 @@ class Superblock {
  * diskSize which is the total number of blocks on the Disk. The constructor will
  * read the data of the Superblock from the disk and initialize the variables
  * for the total number of block, total number of inodes, and the block number
- * of the free list's head.
+ * of the free list's head. All its blocks are read and written through device.
  */
-    public Superblock(int diskSize) {
+    public Superblock(int diskSize, BlockDevice device) {
+        this.device = device;
         byte[] superBlockData = new byte[Disk.blockSize];
-        SysLib.rawread(0, superBlockData);
+        device.read(0, superBlockData);
        
         //total block location
         totalBlocks = SysLib.bytes2int(superBlockData, 0);
@@ -33,14 +73,51 @@ class Superblock {
         //total inode location
         totalInodes = SysLib.bytes2int(superBlockData, 4);
        
-        //block number of the free list's head
+        //block number of the first data block
         freeList = SysLib.bytes2int(superBlockData, 8);
+        
+        //free inode count at the last sync
+        freeInodes = SysLib.bytes2int(superBlockData, 24);
+        
+        //format version
+        format = DiskFormat.forVersion(SysLib.bytes2int(superBlockData, 28));
    
         //checks the disk contents if they are valid
-        if (totalBlocks == diskSize && totalInodes > 0 && freeList >= 2){
-            return; //valid disk state
+        if (totalBlocks == diskSize && totalInodes > 0 && freeList >= 2
+                && SysLib.bytes2int(superBlockData, 12) == BITMAP_MAGIC
+                && format != null && totalBlocks <= format.maxDiskBlocks){
+            layout();
+            allocator = new BitmapAllocator(totalBlocks);
+            long start = System.currentTimeMillis();
+            if (SysLib.bytes2int(superBlockData, 16) == CLEAN_MARKER){
+                //unmounted cleanly, the bitmap on the disk is right
+                clean = true;
+                loadBitmap();
+                System.err.println("threadOS: file system mounted clean in " +
+                        (System.currentTimeMillis() - start) + " ms");
+            } else {
+                int inUse = rebuildBitmap();
+                System.err.println("threadOS: file system wasn't unmounted cleanly, scanned " +
+                        totalInodes + " inodes (" + inUse + " with blocks) in " +
+                        (System.currentTimeMillis() - start) + " ms");
+            }
         } else { //does this if the disk state is invalid and format is required
+            //a new disk is all zeros, anything else held a file system this
+            //one can't read (an old free list disk or a damaged superblock)
+            //and its files are lost
+            boolean blank = true;
+            for (int i = 0; i < superBlockData.length; i++){
+                if (superBlockData[i] != 0){
+                    blank = false;
+                    break;
+                }
+            }
+            if (!blank){
+                System.err.println("threadOS: the disk's superblock isn't one this " +
+                        "file system reads, formatting it with 64 inodes");
+            }
             totalBlocks = diskSize;
+            allocator = new BitmapAllocator(totalBlocks);
             format(64); //set 64 to a private, final static int on top
         }
     }
@@ -50,67 +127,184 @@ class Superblock {
  * itself if the superblock detects illegal states during initialization of an
  * instance. All the instance variables of the Superblock are cleared to default
  * values and then written back to newly cleared disk.
+ * Only the inodes, the bitmap and the superblock are written, with one write
+ * per block, the data blocks are just marked free in the bitmap. Whatever they
+ * still hold is never read: the file system zeroes a data block lazily, when
+ * it's first allocated and only partly written (and reads a block a file
+ * never wrote as zeros).
  *
  */
     public void format(int inodeNum){
-        byte[] dummyBlock = null;
-        
         totalInodes = inodeNum;
+        freeInodes = inodeNum - 1; //all but "/"
+        clean = false;
         
-        //dummy Inode for the object creation below
-        Inode newInode = null;
+        //the first version whose block pointers reach every block
+        format = DiskFormat.forDisk(totalBlocks);
         
-        //creates and writes inodes to the disk
-        for (int i = 0; i < totalInodes; i++){
-            newInode = new Inode();
-            newInode.toDisk((short)i);
+        //one block of empty inodes, written over every inode block
+        byte[] inodeBlock = new byte[Disk.blockSize];
+        Inode newInode = new Inode(format);
+        for (int i = 0; i < format.inodesPerBlock; i++){
+            newInode.toBytes(inodeBlock, i * format.inodeSize);
         }
+        int inodeBlocks = (totalInodes + format.inodesPerBlock - 1) / format.inodesPerBlock;
+        for (int b = 0; b < inodeBlocks; b++){
+            device.write(1 + b, inodeBlock);
+        }
+        
+        //places the bitmap after the inodes and the data blocks after the bitmap
+        layout();
+        
+        //everything but the metadata blocks is free
+        allocator.reset(freeList);
         
-        //sets the free list depending on the first free block. In this example,
-        //it should be pointing to 4
-        freeList = (inodeNum / 16) + 2;
-        
-        //create new default number of free blocks and writes them into disk
-        for (int i = freeList; i < defaultBlocks - 1; i++){
-            dummyBlock = new byte[Disk.blockSize];
-            
-            //this is used to erase the current block
-            for (int j = 0; j < Disk.blockSize; j++){
-                dummyBlock[j] = 0;
+        //used to create and write new Superblock and the bitmap to disk
+        sync();
+    }
+//------------------------------------------------------------------------------
+/**
+ * Works out where the bitmap and the data blocks start from totalInodes
+ * (16 or 8 inodes per block, see DiskFormat) and totalBlocks.
+ */
+    private void layout(){
+        bitmapStart = 1 + (totalInodes + format.inodesPerBlock - 1) / format.inodesPerBlock;
+        freeList = bitmapStart + (totalBlocks + bitsPerBlock - 1) / bitsPerBlock;
+    }
+//------------------------------------------------------------------------------
+/**
+ * Reads the bitmap blocks into memory.
+ */
+    private void loadBitmap(){
+        byte[] block = new byte[Disk.blockSize];
+        for (int w = 0; w < allocator.wordCount(); w++){
+            int offset = (w * 8) % Disk.blockSize;
+            if (offset == 0){
+                device.read(bitmapStart + w * 8 / Disk.blockSize, block);
             }
-            //writes the next sequential free block in pointer to next free block
-            SysLib.int2bytes(i + 1, dummyBlock, 0);
-            
-            //writes the block to disk
-            SysLib.rawwrite(i, dummyBlock);
+            allocator.setWord(w, ((long)SysLib.bytes2int(block, offset) << 32)
+                    | (SysLib.bytes2int(block, offset + 4) & 0xffffffffL));
         }
+        allocator.recount(freeList);
+    }
+//------------------------------------------------------------------------------
+/**
+ * Rebuilds the bitmap from the blocks the inodes point to, for a mount after
+ * the file system wasn't unmounted cleanly (the bitmap on the disk may be
+ * behind the inodes, or ahead of them). The inode blocks are scanned in
+ * parallel on a fork-join pool and every indirect block found, double indirect
+ * ones and the indirect blocks they point to included, is scanned as a task of
+ * its own. Inodes the crash left counted as open, or flagged as being
+ * read or written, are reset so opening them doesn't wait forever.
+ * @return the number of inodes pointing to blocks
+ */
+    private int rebuildBitmap(){
+        allocator.reset(freeList);
+        AtomicInteger inUse = new AtomicInteger(0);
+        ForkJoinPool.commonPool().invoke(new InodeScan(1, bitmapStart, inUse));
+        sync(); //the whole bitmap, reset( ) marked every word changed
+        return inUse.get();
+    }
+    
+    //scans the inode blocks from lo up to hi, splitting down to one block per task
+    private class InodeScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int lo, hi;
+        private final AtomicInteger inUse;
         
-        //writes final block
-        dummyBlock = new byte[Disk.blockSize];
-        
-        //erases block
-        for (int j = 0; j < Disk.blockSize; j++){
-            dummyBlock[j] = 0;
+        InodeScan(int lo, int hi, AtomicInteger inUse){
+            this.lo = lo;
+            this.hi = hi;
+            this.inUse = inUse;
         }
         
-        //writes the next sequential free block in pointer to next free block
-        SysLib.int2bytes(-1, dummyBlock, 0);
+        protected void compute(){
+            if (hi - lo > 1){
+                int mid = (lo + hi) / 2;
+                invokeAll(new InodeScan(lo, mid, inUse), new InodeScan(mid, hi, inUse));
+                return;
+            }
+            byte[] block = new byte[Disk.blockSize];
+            if (device.read(lo, block) != Kernel.OK){
+                return;
+            }
+            List<IndirectScan> indirects = new ArrayList<>();
+            boolean changed = false;
+            int perBlock = format.inodesPerBlock;
+            for (int i = 0; i < perBlock && (lo - 1) * perBlock + i < totalInodes; i++){
+                int offset = i * format.inodeSize;
+                Inode node = new Inode(block, offset, format);
+                boolean used = false;
+                for (int d = 0; d < node.direct.length; d++){
+                    used |= mark(node.direct[d]);
+                }
+                if (mark(node.indirect)){
+                    used = true;
+                    indirects.add(new IndirectScan(node.indirect, false));
+                }
+                if (mark(node.doubleIndirect)){
+                    used = true;
+                    indirects.add(new IndirectScan(node.doubleIndirect, true));
+                }
+                if (used){
+                    inUse.incrementAndGet();
+                }
+                if (node.count != 0 || node.flag == FileTable.READ || node.flag == FileTable.WRITE){
+                    node.count = 0;
+                    node.flag = FileTable.USED;
+                    node.toBytes(block, offset);
+                    changed = true;
+                }
+            }
+            if (changed){
+                device.write(lo, block);
+            }
+            invokeAll(indirects);
+        }
+    }
+    
+    //marks the blocks an indirect block points to, and for a double indirect
+    //block scans the indirect blocks it points to
+    private class IndirectScan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int indirect;
+        private final boolean doubly;
         
-        //write block to disk
-        SysLib.rawwrite(defaultBlocks - 1, dummyBlock);
+        IndirectScan(int indirect, boolean doubly){
+            this.indirect = indirect;
+            this.doubly = doubly;
+        }
         
-        //used to create and write new Superblock to disk
-        sync();
+        protected void compute(){
+            byte[] block = new byte[Disk.blockSize];
+            if (device.read(indirect, block) != Kernel.OK){
+                return;
+            }
+            List<IndirectScan> groups = new ArrayList<>();
+            for (int i = 0; i < Disk.blockSize; i += format.pointerSize){
+                int blockId = format.getPointer(block, i);
+                if (mark(blockId) && doubly){
+                    groups.add(new IndirectScan(blockId, false));
+                }
+            }
+            invokeAll(groups);
+        }
+    }
+    
+    //marks a block an inode points to in use, if it's a data block
+    private boolean mark(int blockId){
+        return blockId < totalBlocks && allocator.mark(blockId);
     }
 //------------------------------------------------------------------------------
 /**
  * Below is a sync() method that is used to bring the physical Superblock()
  * contents at block 0 on the disk together and synced with any updates that the
  * Superblock class instance. The sync() method writes back to the disk with
- * the total number of blocks, total number of Inodes, and the freeList.
+ * the total number of blocks, total number of Inodes, and the freeList, and
+ * then every bitmap block holding a word changed since the last sync.
  *
  */
-    public void sync(){
+    public synchronized void sync(){
         //creates new block to hold superblock data
         byte[] newSuperblock = new byte[Disk.blockSize];
         
@@ -123,101 +317,108 @@ class Superblock {
         //copies freeList to newSuperBlock
         SysLib.int2bytes(freeList, newSuperblock, 8);
         
+        //marks the disk as using the bitmap
+        SysLib.int2bytes(BITMAP_MAGIC, newSuperblock, 12);
+        
+        //and as unmounted cleanly, if it is
+        SysLib.int2bytes(clean ? CLEAN_MARKER : 0, newSuperblock, 16);
+        
+        //copies the free block and free inode counts
+        SysLib.int2bytes(allocator.freeBlocks(), newSuperblock, 20);
+        SysLib.int2bytes(freeInodes, newSuperblock, 24);
+        
+        //and the format version
+        SysLib.int2bytes(format.version, newSuperblock, 28);
+        
         //writes the newly copied superBlock to disk
-        SysLib.rawwrite(0, newSuperblock);
+        device.write(0, newSuperblock);
+        
+        //writes back the bitmap blocks with changed words
+        int wordsPerBlock = Disk.blockSize / 8;
+        byte[] block = new byte[Disk.blockSize];
+        for (int first = 0; first < allocator.wordCount(); first += wordsPerBlock){
+            int last = Math.min(allocator.wordCount(), first + wordsPerBlock);
+            boolean changed = false;
+            for (int w = first; w < last; w++){
+                changed |= allocator.takeDirty(w); //clears every word's flag
+            }
+            if (changed){
+                for (int w = first; w < last; w++){
+                    long word = allocator.getWord(w);
+                    SysLib.int2bytes((int)(word >>> 32), block, (w - first) * 8);
+                    SysLib.int2bytes((int)word, block, (w - first) * 8 + 4);
+                }
+                device.write(bitmapStart + first / wordsPerBlock, block);
+            }
+        }
+    }
+//------------------------------------------------------------------------------
+/**
+ * Puts CLEAN_MARKER on the disk. The file system calls this once everything
+ * else is synced to the disk and no file is open, so the next mount can trust
+ * the bitmap. The superblock goes to the disk right away, after the rest.
+ */
+    public synchronized void markClean(){
+        clean = true;
+        sync();
+        device.writeBack(new int[] { 0 });
+    }
+//------------------------------------------------------------------------------
+/**
+ * Takes CLEAN_MARKER off the disk before the file system changes anything, so
+ * a crash from here on makes the next mount rebuild the bitmap. Costs nothing
+ * once the marker is off.
+ */
+    public void markDirty(){
+        if (!clean){
+            return;
+        }
+        synchronized (this){
+            if (clean){
+                clean = false;
+                sync();
+                device.writeBack(new int[] { 0 });
+            }
+        }
     }
 //------------------------------------------------------------------------------
 /**
- * Below is the getFreeBlock() method that returns the int of the first free
- * block in the freeList. The free block is the top block from the list. If
- * there is an error, then -1 is returned to show that the method failed.
- * Errors will occur from the absence of free blocks.
+ * Below is the getAllocator() method that returns the allocator for the data
+ * blocks, which keeps the bitmap this superblock writes back on sync. It's the
+ * same one across formats.
+ */
+    public BlockAllocator getAllocator(){
+        return allocator;
+    }
+//------------------------------------------------------------------------------
+/**
+ * Below is the getFormat() method that returns the format version of the
+ * disk, which tells the inodes and the file system how wide a block pointer
+ * is. It can change with format().
+ */
+    public DiskFormat getFormat(){
+        return format;
+    }
+//------------------------------------------------------------------------------
+/**
+ * Below is the getFreeBlock() method that returns the int of a free block and
+ * marks it in use, see BitmapAllocator.alloc(). If there is an error, then -1
+ * is returned to show that the method failed. Errors will occur from the
+ * absence of free blocks.
  */
     
     public int getFreeBlock(){
-        if (freeList > 0 && freeList <= totalBlocks){
-            //creates a temp block to hold first free block
-            byte[] tempFreeBlock = new byte[Disk.blockSize];
-            
-            //reads free block form disk
-            SysLib.rawread(freeList, tempFreeBlock);
-            
-            //hold the free block location in a temp variable
-            int temp = freeList;
-            
-            //updates the next free block
-            freeList = SysLib.bytes2int(tempFreeBlock, 0);
-            
-            //returns the free block location
-            return temp;
-        }
-        
-        //invalid state, retursn -1 to indicate failure
-        return -1;
-        
+        return allocator.alloc();
     }
 //------------------------------------------------------------------------------
 /**
  * Below is the returnBlock() method that is used to add a newly freed block
- * back to the free list. This newly freed block is added to the end of the list
- * (FIFO). IF the freed block does not fit to the disk parameters held in
- * Superblock, then the operation fails and returns false. 
+ * back to the free blocks by clearing its bit. IF the freed block is not a
+ * data block of the disk or is free already, then the operation fails and
+ * returns false. 
  *
  */
     public boolean returnBlock(int blockNumber){
-        
-        //used to check if the blockNumber that is passed through is within range
-        if (blockNumber > 0 && blockNumber <= totalBlocks){
-            
-            int temp = 0; //second walking pointer
-            int nextFreeBlock = freeList; //next free block
-            
-            //temp byte[] array to hold the working block
-            byte[] tempWorkingBlock = new byte[Disk.blockSize];
-            
-            //new block byte[] array returned to freeList
-            byte[] newBlock = new byte[Disk.blockSize];
-            
-            
-            //erases block
-            for (int i = 0; i < Disk.blockSize; i++){
-                tempWorkingBlock[i] = 0;
-            }
-            
-            //sets the next block ni the newBlock byte[] arry to -1
-            SysLib.int2bytes(-1, newBlock, 0);
-            
-            //goes through while the end of the free list has not been found.
-            //This while loop will keep looking for the end of the free list
-            while (nextFreeBlock != -1){
-                //gets the next free block
-                SysLib.rawread(nextFreeBlock, tempWorkingBlock);
-                
-                
-                //checks the byte id of the following free block
-                temp = SysLib.bytes2int(tempWorkingBlock, 0);
-                
-                //checks if the free block is -1, if it is -1 then it is at the
-                //end of the queue
-                if (temp == -1){
-                    
-                    //sets the next free block to the blockNumber that was passed
-                    //through and write it to the disk
-                    SysLib.int2bytes(blockNumber, tempWorkingBlock, 0);
-                    SysLib.rawwrite(nextFreeBlock, tempWorkingBlock);
-                    SysLib.rawwrite(blockNumber, newBlock);
-                    
-                    //method is complete
-                    return true;
-                    
-                }
-                
-                //has not reached the end, keeps going through
-                nextFreeBlock = temp;
-            }
-        }
-        
-        //invalid block was returned therefore returns false and does nothing
-        return false;
+        return allocator.free(blockNumber);
     }
 }
@@ -0,0 +1,90 @@
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q (Johnson and Shasha): blocks seen once go through a FIFO (A1in) and only
+ * blocks referenced again after leaving it (remembered by number in the A1out
+ * ghost queue) get into the main LRU list (Am). A one-time scan therefore
+ * only cycles A1in and leaves the hot blocks in Am alone.
+ */
+class TwoQPolicy implements EvictionPolicy {
+    private final static byte NONE = 0;
+    private final static byte A1IN = 1;
+    private final static byte AM = 2;
+
+    private final FrameList a1in;
+    private final FrameList am;
+    private final LinkedHashSet<Integer> a1out = new LinkedHashSet<Integer>();
+    private final byte[] where;  //which list each frame is on
+    private final int[] blocks;  //block held by each resident frame
+    private final int kin;       //target size of A1in
+    private final int kout;      //size of the A1out ghost queue
+
+    TwoQPolicy(int frames) {
+        int[] prev = new int[frames];
+        int[] next = new int[frames];
+        a1in = new FrameList(prev, next);
+        am = new FrameList(prev, next);
+        where = new byte[frames];
+        blocks = new int[frames];
+        kin = Math.max(1, frames / 4);
+        kout = Math.max(1, frames / 2);
+    }
+
+    public void hit(int frame) {
+        if (where[frame] == AM) {
+            am.moveToFirst(frame);
+        }
+        //a hit in A1in is a correlated reference, it doesn't promote the block
+    }
+
+    public void insert(int frame, int blockId) {
+        remove(frame);
+        blocks[frame] = blockId;
+        if (a1out.remove(blockId)) {
+            where[frame] = AM;
+            am.addFirst(frame);
+        }
+        else {
+            where[frame] = A1IN;
+            a1in.addFirst(frame);
+        }
+    }
+
+    public void remove(int frame) {
+        if (where[frame] == A1IN) {
+            a1in.unlink(frame);
+        }
+        else if (where[frame] == AM) {
+            am.unlink(frame);
+        }
+        where[frame] = NONE;
+    }
+
+    public int victim(int blockId, FrameFilter filter) {
+        int f = -1;
+        if (a1in.size() > kin || am.size() == 0) {
+            f = a1in.lastEvictable(filter);
+        }
+        if (f == -1) {
+            f = am.lastEvictable(filter);
+        }
+        if (f == -1) {
+            f = a1in.lastEvictable(filter);
+        }
+        if (f == -1) {
+            return -1;
+        }
+        if (where[f] == A1IN) {
+            //remember it, a reference soon after means it belongs in Am
+            a1out.add(blocks[f]);
+            if (a1out.size() > kout) {
+                Iterator<Integer> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+        remove(f);
+        return f;
+    }
+}